@@ -35,3 +35,5 @@ LOCAL_AAPT_FLAGS += --extra-packages com.google.android.gms
 LOCAL_STATIC_JAVA_LIBRARIES := play
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
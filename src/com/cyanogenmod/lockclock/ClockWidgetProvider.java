@@ -18,12 +18,15 @@ package com.cyanogenmod.lockclock;
 
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.util.Log;
 
 import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.FormatterCache;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.misc.Preferences;
 import com.cyanogenmod.lockclock.weather.ForecastActivity;
@@ -39,7 +42,30 @@ public class ClockWidgetProvider extends AppWidgetProvider {
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         // Default handling, triggered via the super class
         if (D) Log.v(TAG, "Updating widgets, default handling.");
-        updateWidgets(context, false, false);
+        // The host asked for a full update, don't assume it still has our last views
+        ClockWidgetService.invalidateWidgets(appWidgetIds);
+        updateWidgets(context, WidgetModel.PANEL_ALL, null);
+
+        // Make sure the clock keeps ticking (API 16 devices), e.g. after a reboot
+        if (!WidgetUtils.isTextClockAvailable()) {
+            WidgetApplication.scheduleClockRefresh(context);
+        }
+    }
+
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        ClockWidgetService.invalidateWidgets(appWidgetIds);
+        WidgetUtils.invalidateWidgetLayouts(appWidgetIds);
+    }
+
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
+            int appWidgetId, Bundle newOptions) {
+        // The widget was resized or moved, its layout has to be recomputed.
+        // The refresh itself is triggered from onReceive once we return.
+        if (D) Log.v(TAG, "Options changed for widget id " + appWidgetId);
+        WidgetUtils.updateWidgetLayout(context, appWidgetId, newOptions,
+                Preferences.getConfig(context).digitalClock);
     }
 
     @Override
@@ -74,19 +100,39 @@ public class ClockWidgetProvider extends AppWidgetProvider {
                 || AppWidgetManager.ACTION_APPWIDGET_DISABLED.equals(action)) {
             super.onReceive(context, intent);
 
-        // Calendar, Time or a settings change, force a calendar refresh
+        // Calendar contents changed, only the calendar needs a refresh
         } else if (Intent.ACTION_PROVIDER_CHANGED.equals(action)
-                || Intent.ACTION_TIME_CHANGED.equals(action)
+                || ClockWidgetService.ACTION_REFRESH_CALENDAR.equals(action)) {
+            updateWidgets(context, WidgetModel.PANEL_CALENDAR,
+                    ClockWidgetService.ACTION_REFRESH_CALENDAR);
+
+        // Alarm changed, the alarm and calendar panels need a refresh
+        } else if ("android.intent.action.ALARM_CHANGED".equals(action)
+                || "com.android.deskclock.NEXT_ALARM_TIME_SET".equals(action)) {
+            WidgetApplication.invalidateNextAlarm();
+            updateWidgets(context, WidgetModel.PANEL_ALARM | WidgetModel.PANEL_CALENDAR,
+                    ClockWidgetService.ACTION_REFRESH_CALENDAR);
+
+        // Time or a settings change, force a full refresh including the calendar
+        } else if (Intent.ACTION_TIME_CHANGED.equals(action)
                 || Intent.ACTION_TIMEZONE_CHANGED.equals(action)
                 || Intent.ACTION_DATE_CHANGED.equals(action)
-                || Intent.ACTION_LOCALE_CHANGED.equals(action)
-                || "android.intent.action.ALARM_CHANGED".equals(action)
-                || ClockWidgetService.ACTION_REFRESH_CALENDAR.equals(action)) {
-            updateWidgets(context, true, false);
+                || Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+            // The 12/24 hour setting change is broadcast as a time change
+            if (!Intent.ACTION_DATE_CHANGED.equals(action)) {
+                FormatterCache.invalidate();
+            }
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                // The cached next alarm is uppercased for the old locale
+                WidgetApplication.invalidateNextAlarm();
+            }
+            updateWidgets(context, WidgetModel.PANEL_ALL,
+                    ClockWidgetService.ACTION_REFRESH_CALENDAR);
 
         // There are no events to show in the Calendar panel, hide it explicitly
         } else if (ClockWidgetService.ACTION_HIDE_CALENDAR.equals(action)) {
-            updateWidgets(context, false, true);
+            updateWidgets(context, WidgetModel.PANEL_CALENDAR,
+                    ClockWidgetService.ACTION_HIDE_CALENDAR);
 
         // The intent is to launch the modal pop-up forecast dialog
         } else if (Constants.ACTION_SHOW_FORECAST.equals(action)) {
@@ -99,27 +145,19 @@ public class ClockWidgetProvider extends AppWidgetProvider {
         } else {
             if (D) Log.v(TAG, "We did not handle the intent, trigger normal handling");
             super.onReceive(context, intent);
-            updateWidgets(context, false, false);
+            updateWidgets(context, WidgetModel.PANEL_ALL, null);
         }
     }
 
     /**
-     *  Update the widget via the service.
+     *  Update the widget via the service. Requests arriving in quick succession are
+     *  merged by the RefreshCoordinator into a single service pass.
      */
-    private void updateWidgets(Context context, boolean refreshCalendar, boolean hideCalendar) {
-        // Build the intent and pass on the weather and calendar refresh triggers
-        Intent i = new Intent(context.getApplicationContext(), ClockWidgetService.class);
-        if (refreshCalendar) {
-            i.setAction(ClockWidgetService.ACTION_REFRESH_CALENDAR);
-        } else if (hideCalendar) {
-            i.setAction(ClockWidgetService.ACTION_HIDE_CALENDAR);
-        } else {
-            i.setAction(ClockWidgetService.ACTION_REFRESH);
-        }
-
-        // Start the service. The service itself will take care of scheduling refreshes if needed
-        if (D) Log.d(TAG, "Starting the service to update the widgets...");
-        context.startService(i);
+    private void updateWidgets(Context context, int dirtyPanels, String calendarAction) {
+        // Keep the broadcast, and with it our process, alive until the service is started.
+        // Only the first call within an onReceive() gets a result, later ones get null.
+        BroadcastReceiver.PendingResult result = goAsync();
+        RefreshCoordinator.getInstance(context).requestRefresh(dirtyPanels, calendarAction, result);
     }
 
     @Override
@@ -130,11 +168,10 @@ public class ClockWidgetProvider extends AppWidgetProvider {
         if (!WidgetUtils.isTextClockAvailable() || Preferences.calendarShowAnniversaries(context)) {
             final WidgetApplication app = (WidgetApplication) context.getApplicationContext();
 
-            // Start the broadcast receiver (API 16 devices)
-            // This will schedule a repeating alarm every minute to handle the clock refresh
-            // Once triggered, the receiver will unregister itself when its work is done
+            // Start the clock refresh (API 16 devices)
+            // This will schedule an alarm on every minute boundary to handle the clock refresh
             if (!WidgetUtils.isTextClockAvailable()) {
-                app.startTickReceiver();
+                WidgetApplication.scheduleClockRefresh(context);
             }
 
             if (Preferences.calendarShowAnniversaries(context)) {
@@ -153,6 +190,7 @@ public class ClockWidgetProvider extends AppWidgetProvider {
         if (D) Log.d(TAG, "Cleaning up: Clearing all pending alarms");
         ClockWidgetService.cancelUpdates(context);
         WeatherUpdateService.cancelUpdates(context);
+        RenderSnapshot.delete(context);
 
         // Stop the clock update event (API 16 devices)
         if (!WidgetUtils.isTextClockAvailable()) {
@@ -16,37 +16,42 @@
 
 package com.cyanogenmod.lockclock;
 
-import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
-import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.Bundle;
-import android.provider.Settings;
+import android.os.Parcel;
 import android.text.TextUtils;
-import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.View;
 import android.widget.RemoteViews;
 import android.widget.Toast;
 
+import com.cyanogenmod.lockclock.WidgetModel.AlarmModel;
+import com.cyanogenmod.lockclock.WidgetModel.CalendarModel;
+import com.cyanogenmod.lockclock.WidgetModel.ClockModel;
+import com.cyanogenmod.lockclock.WidgetModel.WeatherModel;
 import com.cyanogenmod.lockclock.calendar.CalendarViewsService;
+import com.cyanogenmod.lockclock.misc.ClickTargets;
 import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.FormatterCache;
 import com.cyanogenmod.lockclock.misc.IconUtils;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WakeupScheduler;
+import com.cyanogenmod.lockclock.misc.WidgetConfig;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.weather.WeatherInfo;
-import com.cyanogenmod.lockclock.weather.WeatherUpdateService;
 
-import java.text.SimpleDateFormat;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Locale;
 
 public class ClockWidgetService extends IntentService {
     private static final String TAG = "ClockWidgetService";
@@ -56,9 +61,22 @@ public class ClockWidgetService extends IntentService {
     public static final String ACTION_REFRESH_CALENDAR = "com.cyanogenmod.lockclock.action.REFRESH_CALENDAR";
     public static final String ACTION_HIDE_CALENDAR = "com.cyanogenmod.lockclock.action.HIDE_CALENDAR";
 
+    public static final String ACTION_CLOCK_TICK = "com.cyanogenmod.lockclock.action.CLOCK_TICK";
+
+    // The WidgetModel.PANEL_* flags that need to be recomputed, all of them if not present
+    public static final String EXTRA_DIRTY_PANELS = "dirty_panels";
+
     // This needs to be static to persist between refreshes until explicitly changed by an intent
     private static boolean mHideCalendar = false;
 
+    // The last model pushed to each widget id, static for the same reason as above
+    private static final SparseArray<WidgetModel> sLastModels = new SparseArray<WidgetModel>();
+    // Whether the persisted snapshot was looked at since the process started, guarded by sLastModels
+    private static boolean sSnapshotRestored = false;
+
+    // Timings of the recent refresh passes, reported through dumpsys
+    private static final RenderStats sStats = new RenderStats(64);
+
     private int[] mWidgetIds;
     private AppWidgetManager mAppWidgetManager;
 
@@ -78,8 +96,50 @@ public class ClockWidgetService extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         if (D) Log.d(TAG, "Got intent " + intent);
+        sStats.countTrigger(getTrigger(intent));
 
         if (mWidgetIds != null && mWidgetIds.length != 0) {
+            boolean screenOn = RenderGate.isScreenOn(this);
+            if (intent != null && ACTION_CLOCK_TICK.equals(intent.getAction())) {
+                // Keep ticking every minute, as long as the screen is on
+                if (!screenOn) {
+                    RenderGate.defer(WidgetModel.PANEL_CLOCK, null);
+                    return;
+                }
+                WidgetApplication.scheduleClockRefresh(this);
+                restoreSnapshot(mWidgetIds);
+                long start = RenderStats.begin();
+                refreshTime(mWidgetIds);
+                sStats.finishPass(start);
+                return;
+            }
+
+            int dirtyPanels = WidgetModel.PANEL_ALL;
+            String calendarAction = null;
+            if (intent != null) {
+                dirtyPanels = intent.getIntExtra(EXTRA_DIRTY_PANELS, WidgetModel.PANEL_ALL);
+                if (ACTION_HIDE_CALENDAR.equals(intent.getAction())
+                        || ACTION_REFRESH_CALENDAR.equals(intent.getAction())) {
+                    calendarAction = intent.getAction();
+                }
+            }
+
+            // Nobody sees the widgets with the screen off, leave them for the catch-up
+            // refresh once it is back on. Only keyguard widgets can be kept up to date.
+            // The set only applies to this pass, the next intent starts from all widgets.
+            int[] widgetIds = mWidgetIds;
+            if (!screenOn) {
+                RenderGate.defer(dirtyPanels, calendarAction);
+                widgetIds = Preferences.getConfig(this).renderKeyguardWhenScreenOff
+                        ? getKeyguardWidgetIds() : new int[0];
+                if (widgetIds.length == 0) {
+                    return;
+                }
+            }
+
+            // Get the last frame up first after a process restart, the live refresh follows
+            restoreSnapshot(widgetIds);
+
             // Check passed in intents
             if (intent != null) {
                 if (ACTION_HIDE_CALENDAR.equals(intent.getAction())) {
@@ -91,165 +151,595 @@ public class ClockWidgetService extends IntentService {
                     // Start with the panel not explicitly hidden
                     // If there are no events, a broadcast to the service will hide the panel
                     mHideCalendar = false;
-                    mAppWidgetManager.notifyAppWidgetViewDataChanged(mWidgetIds, R.id.calendar_list);
+                    mAppWidgetManager.notifyAppWidgetViewDataChanged(widgetIds, R.id.calendar_list);
+                    sStats.countHostCalls(1);
                 }
             }
-            refreshWidget();
+            long start = RenderStats.begin();
+            refreshWidget(widgetIds, dirtyPanels);
+            sStats.finishPass(start);
+        }
+    }
+
+    private static int getTrigger(Intent intent) {
+        String action = intent != null ? intent.getAction() : null;
+        if (ACTION_REFRESH.equals(action)) {
+            return RenderStats.TRIGGER_REFRESH;
+        } else if (ACTION_REFRESH_CALENDAR.equals(action)) {
+            return RenderStats.TRIGGER_REFRESH_CALENDAR;
+        } else if (ACTION_HIDE_CALENDAR.equals(action)) {
+            return RenderStats.TRIGGER_HIDE_CALENDAR;
+        } else if (ACTION_CLOCK_TICK.equals(action)) {
+            return RenderStats.TRIGGER_CLOCK_TICK;
+        }
+        return RenderStats.TRIGGER_OTHER;
+    }
+
+    private int[] getKeyguardWidgetIds() {
+        boolean digitalClock = Preferences.getConfig(this).digitalClock;
+        int count = 0;
+        int[] ids = new int[mWidgetIds.length];
+        for (int id : mWidgetIds) {
+            if (WidgetUtils.getWidgetLayout(this, id, digitalClock).isKeyguard) {
+                ids[count++] = id;
+            }
         }
+        int[] result = new int[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return true if the widgets have been rendered since the process started
+     */
+    static boolean hasRendered() {
+        synchronized (sLastModels) {
+            return sLastModels.size() != 0;
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        sStats.dump(writer);
+        RenderGate.dump(writer);
+        WakeupScheduler.dump(writer);
+        RefreshCoordinator coordinator = RefreshCoordinator.getInstance(this);
+        writer.println("Refresh requests: " + coordinator.getRequestCount()
+                + ", passes: " + coordinator.getPassCount()
+                + ", merged: " + coordinator.getMergedCount());
+        writer.println("Icon cache hits: " + IconUtils.getBitmapCacheHitCount()
+                + ", misses: " + IconUtils.getBitmapCacheMissCount()
+                + ", evictions: " + IconUtils.getBitmapCacheEvictionCount());
     }
 
     /**
      * Reload the widget including the Weather forecast, Alarm, Clock font and Calendar
+     *
+     * @param widgetIds The widgets to refresh
+     * @param dirtyPanels The panels that may have changed since the last refresh. Panels not
+     *        in the set are reused from the last pushed model where it is still applicable.
+     *
+     * Package-private for the render benchmark
      */
-    private void refreshWidget() {
+    void refreshWidget(int[] widgetIds, int dirtyPanels) {
         // Get things ready
-        RemoteViews remoteViews;
-        boolean digitalClock = Preferences.showDigitalClock(this);
-        boolean showWeather = Preferences.showWeather(this);
-        boolean showWeatherWhenMinimized = Preferences.showWeatherWhenMinimized(this);
+        final WidgetConfig config = Preferences.getConfig(this);
+        boolean digitalClock = config.digitalClock;
+        boolean showWeather = config.showWeather;
+        boolean showWeatherWhenMinimized = config.showWeatherWhenMinimized;
+        boolean weatherDirty = (dirtyPanels & WidgetModel.PANEL_WEATHER) != 0;
+        WeatherInfo weatherInfo = null;
+        boolean weatherLoaded = false;
+
+        // The alarm panel is the same for every widget, the clock only differs by scale
+        long start = RenderStats.begin();
+        AlarmModel alarm = buildAlarmModel(config);
+        sStats.end(RenderStats.PHASE_ALARM, start);
+        ClockModel clock = null;
+
+        // Widgets ending up with the same model and the same changes share a single update
+        ArrayList<RenderGroup> groups = new ArrayList<RenderGroup>();
+        int skipped = 0;
+
+        // Build the models for all the widgets
+        for (int id : widgetIds) {
+            // The sizing decisions are cached per widget, no need to ask the host every time
+            WidgetUtils.WidgetLayout layout = WidgetUtils.getWidgetLayout(this, id, digitalClock);
+            if (D) Log.d(TAG, "For Widget id " + id + " isKeyguard is set to " + layout.isKeyguard);
 
-        // Update the widgets
-        for (int id : mWidgetIds) {
-            boolean showCalendar = false;
+            // Determine which layout to use
+            // The small widget is only shown if weather needs to be shown
+            // and there is not enough space for the full weather widget and
+            // the user had selected to show the weather when minimized (default ON)
+            boolean smallWidget = showWeather && showWeatherWhenMinimized && layout.smallWidget;
+
+            // show calendar if enabled and events available and enough space available
+            boolean showCalendar = !smallWidget && config.showCalendar && !mHideCalendar
+                    && layout.canFitCalendar;
+
+            boolean canFitWeather = smallWidget || layout.canFitWeather;
+            boolean weatherVisible = showWeather && canFitWeather;
+
+            // Reuse the weather panel if nothing weather related changed
+            WidgetModel previous = getLastModel(id);
+            WeatherModel weather = null;
+            if (!weatherVisible) {
+                weather = WeatherModel.hidden();
+            } else if (!weatherDirty) {
+                if (previous != null && previous.smallWidget == smallWidget
+                        && previous.weather.visible) {
+                    weather = previous.weather;
+                }
+            }
 
-            // Determine if its a home or a lock screen widget
-            Bundle myOptions = mAppWidgetManager.getAppWidgetOptions (id);
-            boolean isKeyguard = false;
-            if (WidgetUtils.isTextClockAvailable()) {
-                // This is only available on API 17+, make sure we are not calling it on API16
-                // This generates an API level Lint warning, ignore it
-                int category = myOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1);
-                isKeyguard = category == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
+            // Only deserialize the weather data once per refresh, and only if it is needed
+            if (weather == null) {
+                if (!weatherLoaded) {
+                    start = RenderStats.begin();
+                    weatherInfo = Preferences.getCachedWeatherInfo(this);
+                    sStats.end(RenderStats.PHASE_WEATHER_DATA, start);
+                    weatherLoaded = true;
+                }
+                weather = buildWeatherModel(config, smallWidget, weatherInfo);
             }
-            if (D) Log.d(TAG, "For Widget id " + id + " isKeyguard is set to " + isKeyguard);
 
-            // Determine which layout to use
-            boolean smallWidget = showWeather && showWeatherWhenMinimized
-                    && WidgetUtils.showSmallWidget(this, id, digitalClock, isKeyguard);
-            if (smallWidget) {
-                // The small widget is only shown if weather needs to be shown
-                // and there is not enough space for the full weather widget and
-                // the user had selected to show the weather when minimized (default ON)
-                remoteViews = new RemoteViews(getPackageName(), R.layout.appwidget_small);
-                showCalendar = false;
-            } else {
-                remoteViews = new RemoteViews(getPackageName(), R.layout.appwidget);
-                // show calendar if enabled and events available and enough space available
-                showCalendar = Preferences.showCalendar(this) && !mHideCalendar
-                        && WidgetUtils.canFitCalendar(this, id, digitalClock);
+            float scale = digitalClock ? layout.scale : 1f;
+            if (clock == null || Float.compare(clock.scale, scale) != 0) {
+                start = RenderStats.begin();
+                clock = buildClockModel(config, scale);
+                sStats.end(RenderStats.PHASE_CLOCK, start);
+            }
+
+            WidgetModel model = new WidgetModel(smallWidget, config.lowPayloadRendering,
+                    clock, alarm, weather,
+                    buildCalendarModel(config, showCalendar));
+
+            int changed = model.getChangedPanels(previous);
+            if (changed == WidgetModel.PANEL_NONE) {
+                if (D) Log.d(TAG, "Widget id " + id + " is unchanged, skipping update");
+                skipped++;
+                continue;
+            }
+            addToGroup(groups, id, model, changed);
+        }
+
+        // Push the updates, one per group
+        for (RenderGroup group : groups) {
+            sStats.countHostCalls(pushGroup(group));
+        }
+        sStats.countWidgets(widgetIds.length - skipped, skipped);
+
+        // Keep the snapshot used after a process restart up to date
+        if (!groups.isEmpty()) {
+            SparseArray<WidgetModel> models;
+            synchronized (sLastModels) {
+                models = sLastModels.clone();
+            }
+            RenderSnapshot.write(this, models);
+        }
+    }
+
+    /**
+     * Push the models persisted by the last refresh pass, if the process has not rendered
+     * anything yet. On API 16 the clock is brought up to date, everything else is shown as
+     * it was and corrected by the refresh that follows.
+     */
+    private void restoreSnapshot(int[] widgetIds) {
+        synchronized (sLastModels) {
+            if (sSnapshotRestored) {
+                return;
+            }
+            sSnapshotRestored = true;
+            if (sLastModels.size() != 0) {
+                return;
+            }
+        }
+
+        long start = RenderStats.begin();
+        SparseArray<WidgetModel> snapshot = RenderSnapshot.read(this);
+        if (snapshot == null) {
+            return;
+        }
+
+        final WidgetConfig config = Preferences.getConfig(this);
+        ArrayList<RenderGroup> groups = new ArrayList<RenderGroup>();
+        ClockModel clock = null;
+        for (int id : widgetIds) {
+            WidgetModel model = snapshot.get(id);
+            if (model == null) {
+                continue;
+            }
+            if (!WidgetUtils.isTextClockAvailable()) {
+                if (clock == null || Float.compare(clock.scale, model.clock.scale) != 0) {
+                    clock = buildClockModel(config, model.clock.scale);
+                }
+                model = model.withClock(clock);
+            }
+            addToGroup(groups, id, model, WidgetModel.PANEL_ALL);
+        }
+        for (RenderGroup group : groups) {
+            sStats.countHostCalls(pushGroup(group));
+        }
+        sStats.finishPass(start);
+        if (D) Log.d(TAG, "Restored " + groups.size() + " group(s) from the snapshot in "
+                + (System.nanoTime() - start) / 1000 + "us");
+    }
+
+    /**
+     * Fast path for the API 16 clock tick, only the time and date views are updated.
+     * Falls back to a full refresh if there is nothing to build upon.
+     */
+    private void refreshTime(int[] widgetIds) {
+        final WidgetConfig config = Preferences.getConfig(this);
+        ClockModel clock = null;
+        int skipped = 0;
+
+        for (int id : widgetIds) {
+            WidgetModel previous = getLastModel(id);
+            if (previous == null) {
+                if (D) Log.d(TAG, "No previous state for widget id " + id + ", doing a full refresh");
+                refreshWidget(widgetIds, WidgetModel.PANEL_ALL);
+                return;
+            }
+
+            long start = RenderStats.begin();
+            if (clock == null || Float.compare(clock.scale, previous.clock.scale) != 0) {
+                clock = buildClockModel(config, previous.clock.scale);
+            }
+            sStats.end(RenderStats.PHASE_CLOCK, start);
+
+            if (clock.equals(previous.clock)) {
+                skipped++;
+                continue;
+            }
+            if (!clock.hasSameStyle(previous.clock)) {
+                // The settings changed under us, the full refresh takes care of it
+                refreshWidget(widgetIds, WidgetModel.PANEL_ALL);
+                return;
+            }
+
+            RemoteViews remoteViews = new RemoteViews(getPackageName(),
+                    previous.smallWidget ? R.layout.appwidget_small : R.layout.appwidget);
+            refreshTime(remoteViews, previous.smallWidget, clock);
+            if (clock.showAmPm) {
+                remoteViews.setTextViewText(R.id.clock_ampm, clock.amPm);
+            }
+            sStats.recordPayload(getParcelledSize(remoteViews));
+
+            start = RenderStats.begin();
+            mAppWidgetManager.partiallyUpdateAppWidget(id, remoteViews);
+            sStats.end(RenderStats.PHASE_IPC, start);
+            sStats.countHostCalls(1);
+
+            synchronized (sLastModels) {
+                sLastModels.put(id, previous.withClock(clock));
+            }
+        }
+        sStats.countWidgets(widgetIds.length - skipped, skipped);
+    }
+
+    private static WidgetModel getLastModel(int id) {
+        synchronized (sLastModels) {
+            return sLastModels.get(id);
+        }
+    }
+
+    /**
+     * A set of widgets that will receive the same RemoteViews
+     */
+    private static class RenderGroup {
+        final WidgetModel model;
+        final int changed;
+        final ArrayList<Integer> ids = new ArrayList<Integer>();
+
+        RenderGroup(WidgetModel model, int changed) {
+            this.model = model;
+            this.changed = changed;
+        }
+
+        int[] getIds() {
+            int[] result = new int[ids.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = ids.get(i);
+            }
+            return result;
+        }
+    }
+
+    private static void addToGroup(ArrayList<RenderGroup> groups, int id, WidgetModel model,
+            int changed) {
+        for (RenderGroup group : groups) {
+            if (group.changed == changed && group.model.equals(model)) {
+                group.ids.add(id);
+                return;
             }
+        }
+        RenderGroup group = new RenderGroup(model, changed);
+        group.ids.add(id);
+        groups.add(group);
+    }
 
+    /**
+     * Push the model to all the widgets of the group, but only the panels that changed
+     * since the last push
+     *
+     * @return The number of calls made to the widget host
+     */
+    private int pushGroup(RenderGroup group) {
+        final WidgetModel model = group.model;
+        final int changed = group.changed;
+        final int[] ids = group.getIds();
+        int hostCalls = 0;
+
+        RemoteViews remoteViews = new RemoteViews(getPackageName(),
+                model.smallWidget ? R.layout.appwidget_small : R.layout.appwidget);
+        boolean fullUpdate = changed == WidgetModel.PANEL_ALL;
+        if (fullUpdate) {
             // Hide the Loading indicator
             remoteViews.setViewVisibility(R.id.loading_indicator, View.GONE);
+        }
+        applyPanels(remoteViews, model, changed);
+
+        // The calendar adapter intent is specific to each widget id. If the group only
+        // has one widget it can go along with the rest, otherwise it is sent separately.
+        boolean needsAdapter = (changed & WidgetModel.PANEL_CALENDAR) != 0 && model.calendar.visible;
+        if (needsAdapter && ids.length == 1) {
+            long start = RenderStats.begin();
+            setCalendarAdapter(remoteViews, ids[0]);
+            sStats.end(RenderStats.PHASE_CALENDAR, start);
+        }
+
+        sStats.recordPayload(getParcelledSize(remoteViews));
 
-            // Always Refresh the Clock widget
-            refreshClock(remoteViews, smallWidget, digitalClock);
-            refreshAlarmStatus(remoteViews, smallWidget);
+        // Do the update
+        long start = RenderStats.begin();
+        if (fullUpdate) {
+            mAppWidgetManager.updateAppWidget(ids, remoteViews);
+        } else {
+            if (D) Log.d(TAG, "Partially updating " + ids.length + " widget(s), changed panels " + changed);
+            mAppWidgetManager.partiallyUpdateAppWidget(ids, remoteViews);
+        }
+        sStats.end(RenderStats.PHASE_IPC, start);
+        hostCalls++;
+
+        if (needsAdapter && ids.length > 1) {
+            for (int id : ids) {
+                start = RenderStats.begin();
+                RemoteViews adapterViews = new RemoteViews(getPackageName(),
+                        model.smallWidget ? R.layout.appwidget_small : R.layout.appwidget);
+                setCalendarAdapter(adapterViews, id);
+                sStats.end(RenderStats.PHASE_CALENDAR, start);
+
+                sStats.recordPayload(getParcelledSize(adapterViews));
+                start = RenderStats.begin();
+                mAppWidgetManager.partiallyUpdateAppWidget(id, adapterViews);
+                sStats.end(RenderStats.PHASE_IPC, start);
+                hostCalls++;
+            }
+        }
 
-            // Refresh the time if using TextView Clock (API 16)
-            if(!WidgetUtils.isTextClockAvailable()) {
-                refreshTime(remoteViews, smallWidget);
+        synchronized (sLastModels) {
+            for (int id : ids) {
+                sLastModels.put(id, model);
             }
+        }
+        return hostCalls;
+    }
+
+    /**
+     * @return The number of bytes the views take up when sent to the host
+     */
+    private static int getParcelledSize(RemoteViews remoteViews) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            remoteViews.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void applyPanels(RemoteViews remoteViews, WidgetModel model, int panels) {
+        // The panel timings include the icon tinting, which is also accounted separately
+        long start;
+        if ((panels & WidgetModel.PANEL_CLOCK) != 0) {
+            start = RenderStats.begin();
+            refreshClock(remoteViews, model.smallWidget, model.clock);
+            sStats.end(RenderStats.PHASE_CLOCK, start);
+        }
 
+        if ((panels & WidgetModel.PANEL_ALARM) != 0) {
+            start = RenderStats.begin();
+            refreshAlarmStatus(remoteViews, model.smallWidget, model.lowPayload, model.alarm);
+            sStats.end(RenderStats.PHASE_ALARM, start);
+        }
+
+        if ((panels & WidgetModel.PANEL_CALENDAR) != 0) {
             // Don't bother with Calendar if its not visible
-            if (showCalendar) {
-                refreshCalendar(remoteViews, id);
+            if (model.calendar.visible) {
+                start = RenderStats.begin();
+                refreshCalendar(remoteViews, model.lowPayload, model.calendar);
+                sStats.end(RenderStats.PHASE_CALENDAR, start);
             }
             // Hide the calendar panel if not visible
-            remoteViews.setViewVisibility(R.id.calendar_panel, showCalendar ? View.VISIBLE : View.GONE);
+            remoteViews.setViewVisibility(R.id.calendar_panel,
+                    model.calendar.visible ? View.VISIBLE : View.GONE);
+        }
 
-            boolean canFitWeather = smallWidget || WidgetUtils.canFitWeather(this, id, digitalClock, isKeyguard);
+        if ((panels & WidgetModel.PANEL_WEATHER) != 0) {
             // Now, if we need to show the actual weather, do so
-            if (showWeather && canFitWeather) {
-                WeatherInfo weatherInfo = Preferences.getCachedWeatherInfo(this);
-
-                if (weatherInfo != null) {
-                    setWeatherData(remoteViews, smallWidget, weatherInfo);
+            WeatherModel weather = model.weather;
+            if (weather.visible) {
+                if (weather.hasData) {
+                    setWeatherData(remoteViews, model.smallWidget, model.lowPayload, weather);
                 } else {
-                    setNoWeatherData(remoteViews, smallWidget);
+                    setNoWeatherData(remoteViews, model.smallWidget, weather);
                 }
             }
-            remoteViews.setViewVisibility(R.id.weather_panel, (showWeather && canFitWeather) ? View.VISIBLE : View.GONE);
+            remoteViews.setViewVisibility(R.id.weather_panel,
+                    weather.visible ? View.VISIBLE : View.GONE);
+        }
+    }
 
-            // Resize the clock font if needed
-            if (digitalClock) {
-                float ratio = WidgetUtils.getScaleRatio(this, id);
-                setClockSize(remoteViews, ratio);
+    /**
+     * Forget the last pushed state of the given widgets, forcing a full update next time.
+     * Used when the host may have lost our views or the widget has been deleted.
+     */
+    public static void invalidateWidgets(int[] appWidgetIds) {
+        synchronized (sLastModels) {
+            if (appWidgetIds == null) {
+                sLastModels.clear();
+                return;
+            }
+            for (int id : appWidgetIds) {
+                sLastModels.remove(id);
+            }
+        }
+    }
+
+    //===============================================================================================
+    // Render model construction
+    //===============================================================================================
+    private ClockModel buildClockModel(WidgetConfig config, float scale) {
+        boolean digitalClock = config.digitalClock;
+        boolean boldHours = config.boldHours;
+        boolean boldMinutes = config.boldMinutes;
+        boolean boldDate = config.boldDateAndAlarms;
+        int color = config.clockFontColor;
+        boolean showAmPm = digitalClock && !FormatterCache.is24HourFormat(this)
+                && config.showAmPmIndicator;
+        Date now = new Date();
+        String amPm = showAmPm ? FormatterCache.format("a", now) : null;
+
+        // The time is only rendered by us on API 16, TextClock takes care of it on API 17+
+        String hours = null, minutes = null, date = null;
+        if (!WidgetUtils.isTextClockAvailable()) {
+            date = FormatterCache.formatFramework(this, R.string.abbrev_wday_month_day_no_year,
+                    now);
+            hours = FormatterCache.format(this, getHourFormat(), now);
+            minutes = FormatterCache.format(this, R.string.widget_12_hours_format_no_ampm_m, now);
+        }
+
+        return new ClockModel(digitalClock, boldHours, boldMinutes, boldDate, showAmPm, amPm,
+                color, scale, hours, minutes, date);
+    }
+
+    private AlarmModel buildAlarmModel(WidgetConfig config) {
+        String nextAlarm = null;
+        if (config.showAlarm) {
+            nextAlarm = WidgetApplication.getNextAlarm(this);
+        }
+        return new AlarmModel(nextAlarm, config.clockAlarmFontColor, config.boldDateAndAlarms);
+    }
+
+    private WeatherModel buildWeatherModel(WidgetConfig config, boolean smallWidget,
+            WeatherInfo w) {
+        int color = config.weatherFontColor;
+        if (w == null) {
+            int providerNameResource = Preferences.weatherProvider(this).getNameResourceId();
+            String noData = getString(R.string.weather_cannot_reach_provider,
+                    getString(providerNameResource));
+            return new WeatherModel(true, false, config.firstWeatherUpdate, color,
+                    0, null, 0, null, null, null, false, null, null, noData);
+        }
+
+        String timestamp = null, lowHigh = null;
+        boolean showCity = false;
+        if (!smallWidget) {
+            showCity = config.showWeatherLocation;
+            if (config.showWeatherTimestamp) {
+                Date updateTime = w.getTimestamp();
+                StringBuilder sb = new StringBuilder();
+                sb.append(FormatterCache.formatFramework("E", updateTime));
+                sb.append(" ");
+                sb.append(FormatterCache.formatTime(this, updateTime));
+                timestamp = sb.toString();
             }
+            boolean invertLowhigh = config.invertLowHigh;
+            final String low = w.getFormattedLow();
+            final String high = w.getFormattedHigh();
+            lowHigh = invertLowhigh ? high + " | " + low : low + " | " + high;
+        }
+
+        return new WeatherModel(true, true, false, color,
+                config.weatherTimestampFontColor, config.weatherIconSet,
+                w.getConditionCode(), w.getCondition(), w.getFormattedTemperature(), w.getCity(),
+                showCity, timestamp, lowHigh, null);
+    }
 
-            // Do the update
-            mAppWidgetManager.updateAppWidget(id, remoteViews);
+    private CalendarModel buildCalendarModel(WidgetConfig config, boolean visible) {
+        if (!visible) {
+            return new CalendarModel(false, false, 0);
         }
+        return new CalendarModel(true, config.showCalendarIcon, config.calendarFontColor);
     }
 
     //===============================================================================================
     // Clock related functionality
     //===============================================================================================
-    private void refreshClock(RemoteViews clockViews, boolean smallWidget, boolean digitalClock) {
+    private void refreshClock(RemoteViews clockViews, boolean smallWidget, ClockModel clock) {
         // Analog or Digital clock
-        if (digitalClock) {
+        if (clock.digital) {
             // Hours/Minutes is specific to Digital, set it's size
-            refreshClockFont(clockViews, smallWidget);
+            refreshClockFont(clockViews, clock);
             clockViews.setViewVisibility(R.id.digital_clock, View.VISIBLE);
             clockViews.setViewVisibility(R.id.analog_clock, View.GONE);
+
+            // Resize the clock font if needed
+            setClockSize(clockViews, clock.scale);
         } else {
             clockViews.setViewVisibility(R.id.analog_clock, View.VISIBLE);
             clockViews.setViewVisibility(R.id.digital_clock, View.GONE);
         }
 
         // Date/Alarm is common to both clocks, set it's size
-        refreshDateAlarmFont(clockViews, smallWidget);
+        refreshDateAlarmFont(clockViews, smallWidget, clock);
+
+        // Refresh the time if using TextView Clock (API 16)
+        if (!WidgetUtils.isTextClockAvailable()) {
+            refreshTime(clockViews, smallWidget, clock);
+        }
 
         // Register an onClickListener on Clock, starting DeskClock
-        Intent i = WidgetUtils.getDefaultClockIntent(this);
-        if (i != null) {
-            PendingIntent pi = PendingIntent.getActivity(this, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+        PendingIntent pi = ClickTargets.getClockIntent(this);
+        if (pi != null) {
             clockViews.setOnClickPendingIntent(R.id.clock_panel, pi);
         }
     }
 
     // API 16 TextView Clock support
-    private void refreshTime(RemoteViews clockViews, boolean smallWidget) {
-        Locale locale = Locale.getDefault();
-        Date now = new Date();
-        String dateFormat = getString(R.string.abbrev_wday_month_day_no_year);
-        CharSequence date = DateFormat.format(dateFormat, now);
-        String hours = new SimpleDateFormat(getHourFormat(), locale).format(now);
-        String minutes = new SimpleDateFormat(getString(R.string.widget_12_hours_format_no_ampm_m),
-                locale).format(now);
-
+    private void refreshTime(RemoteViews clockViews, boolean smallWidget, ClockModel clock) {
         // Hours
-        if (Preferences.useBoldFontForHours(this)) {
-            clockViews.setTextViewText(R.id.clock1_bold, hours);
+        if (clock.boldHours) {
+            clockViews.setTextViewText(R.id.clock1_bold, clock.hours);
         } else {
-            clockViews.setTextViewText(R.id.clock1_regular, hours);
+            clockViews.setTextViewText(R.id.clock1_regular, clock.hours);
         }
 
         // Minutes
-        if (Preferences.useBoldFontForMinutes(this)) {
-            clockViews.setTextViewText(R.id.clock2_bold, minutes);
+        if (clock.boldMinutes) {
+            clockViews.setTextViewText(R.id.clock2_bold, clock.minutes);
         } else {
-            clockViews.setTextViewText(R.id.clock2_regular, minutes);
+            clockViews.setTextViewText(R.id.clock2_regular, clock.minutes);
         }
 
         // Date and Alarm font
         if (!smallWidget) {
-            if (Preferences.useBoldFontForDateAndAlarms(this)) {
-                clockViews.setTextViewText(R.id.date_bold, date);
+            if (clock.boldDate) {
+                clockViews.setTextViewText(R.id.date_bold, clock.date);
             } else {
-                clockViews.setTextViewText(R.id.date_regular, date);
+                clockViews.setTextViewText(R.id.date_regular, clock.date);
             }
         } else {
-            clockViews.setTextViewText(R.id.date, date);
+            clockViews.setTextViewText(R.id.date, clock.date);
         }
     }
 
-    private void refreshClockFont(RemoteViews clockViews, boolean smallWidget) {
-        int color = Preferences.clockFontColor(this);
-        String amPM = new SimpleDateFormat("a", Locale.getDefault()).format(new Date());
+    private void refreshClockFont(RemoteViews clockViews, ClockModel clock) {
+        int color = clock.color;
 
         // Hours
-        if (Preferences.useBoldFontForHours(this)) {
+        if (clock.boldHours) {
             clockViews.setViewVisibility(R.id.clock1_bold, View.VISIBLE);
             clockViews.setViewVisibility(R.id.clock1_regular, View.GONE);
             clockViews.setTextColor(R.id.clock1_bold, color);
@@ -260,7 +750,7 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Minutes
-        if (Preferences.useBoldFontForMinutes(this)) {
+        if (clock.boldMinutes) {
             clockViews.setViewVisibility(R.id.clock2_bold, View.VISIBLE);
             clockViews.setViewVisibility(R.id.clock2_regular, View.GONE);
             clockViews.setTextColor(R.id.clock2_bold, color);
@@ -271,21 +761,21 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Show the AM/PM indicator
-        if (!DateFormat.is24HourFormat(this) && Preferences.showAmPmIndicator(this)) {
+        if (clock.showAmPm) {
             clockViews.setViewVisibility(R.id.clock_ampm, View.VISIBLE);
-            clockViews.setTextViewText(R.id.clock_ampm, amPM);
+            clockViews.setTextViewText(R.id.clock_ampm, clock.amPm);
             clockViews.setTextColor(R.id.clock_ampm, color);
         } else {
             clockViews.setViewVisibility(R.id.clock_ampm, View.GONE);
         }
     }
 
-    private void refreshDateAlarmFont(RemoteViews clockViews, boolean smallWidget) {
-        int color = Preferences.clockFontColor(this);
+    private void refreshDateAlarmFont(RemoteViews clockViews, boolean smallWidget, ClockModel clock) {
+        int color = clock.color;
 
         // Date and Alarm font
         if (!smallWidget) {
-            if (Preferences.useBoldFontForDateAndAlarms(this)) {
+            if (clock.boldDate) {
                 clockViews.setViewVisibility(R.id.date_bold, View.VISIBLE);
                 clockViews.setViewVisibility(R.id.date_regular, View.GONE);
                 clockViews.setTextColor(R.id.date_bold, color);
@@ -311,12 +801,12 @@ public class ClockWidgetService extends IntentService {
         clockViews.setTextViewTextSize(R.id.clock2_regular, TypedValue.COMPLEX_UNIT_PX, fontSize * scale);
     }
 
-    private String getHourFormat() {
-        String format;
-        if (DateFormat.is24HourFormat(this)) {
-            format = getString(R.string.widget_24_hours_format_h_api_16);
+    private int getHourFormat() {
+        int format;
+        if (FormatterCache.is24HourFormat(this)) {
+            format = R.string.widget_24_hours_format_h_api_16;
         } else {
-            format = getString(R.string.widget_12_hours_format_h);
+            format = R.string.widget_12_hours_format_h;
         }
         return format;
     }
@@ -324,41 +814,35 @@ public class ClockWidgetService extends IntentService {
     //===============================================================================================
     // Alarm related functionality
     //===============================================================================================
-    private void refreshAlarmStatus(RemoteViews alarmViews, boolean smallWidget) {
-        if (Preferences.showAlarm(this)) {
-            String nextAlarm = getNextAlarm();
-            if (!TextUtils.isEmpty(nextAlarm)) {
-                // An alarm is set, deal with displaying it
-                int color = Preferences.clockAlarmFontColor(this);
-                final Resources res = getResources();
-
-                // Overlay the selected color on the alarm icon and set the imageview
-                alarmViews.setImageViewBitmap(R.id.alarm_icon,
-                        IconUtils.getOverlaidBitmap(res, R.drawable.ic_alarm_small, color));
-                alarmViews.setViewVisibility(R.id.alarm_icon, View.VISIBLE);
-
-                if (!smallWidget) {
-                    if (Preferences.useBoldFontForDateAndAlarms(this)) {
-                        alarmViews.setTextViewText(R.id.nextAlarm_bold,
-                                nextAlarm.toString().toUpperCase(Locale.getDefault()));
-                        alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.VISIBLE);
-                        alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.GONE);
-                        alarmViews.setTextColor(R.id.nextAlarm_bold, color);
-                    } else {
-                        alarmViews.setTextViewText(R.id.nextAlarm_regular,
-                                nextAlarm.toString().toUpperCase(Locale.getDefault()));
-                        alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.VISIBLE);
-                        alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.GONE);
-                        alarmViews.setTextColor(R.id.nextAlarm_regular, color);
-                    }
+    private void refreshAlarmStatus(RemoteViews alarmViews, boolean smallWidget,
+            boolean lowPayload, AlarmModel alarm) {
+        String nextAlarm = alarm.nextAlarm;
+        if (!TextUtils.isEmpty(nextAlarm)) {
+            // An alarm is set, deal with displaying it
+            int color = alarm.color;
+
+            // Overlay the selected color on the alarm icon and set the imageview
+            setTintedIcon(alarmViews, R.id.alarm_icon, R.drawable.ic_alarm_small, color, lowPayload);
+            alarmViews.setViewVisibility(R.id.alarm_icon, View.VISIBLE);
+
+            if (!smallWidget) {
+                if (alarm.bold) {
+                    alarmViews.setTextViewText(R.id.nextAlarm_bold, nextAlarm);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.VISIBLE);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.GONE);
+                    alarmViews.setTextColor(R.id.nextAlarm_bold, color);
                 } else {
-                    alarmViews.setTextViewText(R.id.nextAlarm,
-                            nextAlarm.toString().toUpperCase(Locale.getDefault()));
-                    alarmViews.setViewVisibility(R.id.nextAlarm, View.VISIBLE);
-                    alarmViews.setTextColor(R.id.nextAlarm, color);
+                    alarmViews.setTextViewText(R.id.nextAlarm_regular, nextAlarm);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.VISIBLE);
+                    alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.GONE);
+                    alarmViews.setTextColor(R.id.nextAlarm_regular, color);
                 }
-                return;
+            } else {
+                alarmViews.setTextViewText(R.id.nextAlarm, nextAlarm);
+                alarmViews.setViewVisibility(R.id.nextAlarm, View.VISIBLE);
+                alarmViews.setTextColor(R.id.nextAlarm, color);
             }
+            return;
         }
 
         // No alarm set or Alarm display is hidden, hide the views
@@ -371,81 +855,68 @@ public class ClockWidgetService extends IntentService {
         }
     }
 
-    /**
-     * @return A formatted string of the next alarm or null if there is no next alarm.
-     */
-    private String getNextAlarm() {
-        String nextAlarm = Settings.System.getString(
-                getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED);
-        if (nextAlarm == null || TextUtils.isEmpty(nextAlarm)) {
-            return null;
-        }
-        return nextAlarm;
-    }
-
     //===============================================================================================
     // Weather related functionality
     //===============================================================================================
     /**
      * Display the weather information
      */
-    private void setWeatherData(RemoteViews weatherViews, boolean smallWidget, WeatherInfo w) {
-        int color = Preferences.weatherFontColor(this);
-        int timestampColor = Preferences.weatherTimestampFontColor(this);
-        String iconsSet = Preferences.getWeatherIconSet(this);
+    private void setWeatherData(RemoteViews weatherViews, boolean smallWidget,
+            boolean lowPayload, WeatherModel w) {
+        int color = w.color;
 
         // Reset no weather visibility
         weatherViews.setViewVisibility(R.id.weather_no_data, View.GONE);
         weatherViews.setViewVisibility(R.id.weather_refresh, View.GONE);
 
         // Weather Image
-        int resId = w.getConditionResource(iconsSet);
+        weatherViews.setViewVisibility(R.id.weather_image, View.VISIBLE);
+        long start = RenderStats.begin();
+        int resId = IconUtils.getWeatherIconResource(this, w.iconSet, w.conditionCode);
+        int tintedResId = lowPayload
+                ? IconUtils.getTintedWeatherIconResource(this, w.iconSet, w.conditionCode) : 0;
         if (resId != 0) {
-            weatherViews.setImageViewResource(R.id.weather_image, w.getConditionResource(iconsSet));
+            weatherViews.setImageViewResource(R.id.weather_image, resId);
+            weatherViews.setInt(R.id.weather_image, "setColorFilter", 0);
+        } else if (tintedResId != 0) {
+            // Let the host tint the monochrome icon instead of sending it a bitmap
+            weatherViews.setImageViewResource(R.id.weather_image, tintedResId);
+            weatherViews.setInt(R.id.weather_image, "setColorFilter", color);
         } else {
-            weatherViews.setImageViewBitmap(R.id.weather_image, w.getConditionBitmap(iconsSet, color));
+            weatherViews.setImageViewBitmap(R.id.weather_image,
+                    IconUtils.getWeatherIconBitmap(this, w.iconSet, color, w.conditionCode));
+            weatherViews.setInt(R.id.weather_image, "setColorFilter", 0);
         }
+        sStats.end(RenderStats.PHASE_ICONS, start);
 
         // Weather Condition
-        weatherViews.setTextViewText(R.id.weather_condition, w.getCondition());
+        weatherViews.setTextViewText(R.id.weather_condition, w.condition);
         weatherViews.setViewVisibility(R.id.weather_condition, View.VISIBLE);
         weatherViews.setTextColor(R.id.weather_condition, color);
 
         // Weather Temps Panel
-        weatherViews.setTextViewText(R.id.weather_temp, w.getFormattedTemperature());
+        weatherViews.setTextViewText(R.id.weather_temp, w.temperature);
         weatherViews.setViewVisibility(R.id.weather_temps_panel, View.VISIBLE);
         weatherViews.setTextColor(R.id.weather_temp, color);
 
         if (!smallWidget) {
             // Display the full weather information panel items
-            // Load the preferences
-            boolean showLocation = Preferences.showWeatherLocation(this);
-            boolean showTimestamp = Preferences.showWeatherTimestamp(this);
-
             // City
-            weatherViews.setTextViewText(R.id.weather_city, w.getCity());
-            weatherViews.setViewVisibility(R.id.weather_city, showLocation ? View.VISIBLE : View.GONE);
+            weatherViews.setTextViewText(R.id.weather_city, w.city);
+            weatherViews.setViewVisibility(R.id.weather_city, w.showCity ? View.VISIBLE : View.GONE);
             weatherViews.setTextColor(R.id.weather_city, color);
 
             // Weather Update Time
-            if (showTimestamp) {
-                Date updateTime = w.getTimestamp();
-                StringBuilder sb = new StringBuilder();
-                sb.append(DateFormat.format("E", updateTime));
-                sb.append(" ");
-                sb.append(DateFormat.getTimeFormat(this).format(updateTime));
-                weatherViews.setTextViewText(R.id.update_time, sb.toString());
+            if (w.timestamp != null) {
+                weatherViews.setTextViewText(R.id.update_time, w.timestamp);
                 weatherViews.setViewVisibility(R.id.update_time, View.VISIBLE);
-                weatherViews.setTextColor(R.id.update_time, timestampColor);
+                weatherViews.setTextColor(R.id.update_time, w.timestampColor);
             } else {
                 weatherViews.setViewVisibility(R.id.update_time, View.GONE);
             }
 
             // Weather Temps Panel additional items
-            boolean invertLowhigh = Preferences.invertLowHighTemperature(this);
-            final String low = w.getFormattedLow();
-            final String high = w.getFormattedHigh();
-            weatherViews.setTextViewText(R.id.weather_low_high, invertLowhigh ? high + " | " + low : low + " | " + high);
+            weatherViews.setTextViewText(R.id.weather_low_high, w.lowHigh);
             weatherViews.setTextColor(R.id.weather_low_high, color);
         }
 
@@ -456,13 +927,12 @@ public class ClockWidgetService extends IntentService {
     /**
      * There is no data to display, display 'empty' fields and the 'Tap to reload' message
      */
-    private void setNoWeatherData(RemoteViews weatherViews, boolean smallWidget) {
-        int color = Preferences.weatherFontColor(this);
-        boolean firstRun = Preferences.isFirstWeatherUpdate(this);
+    private void setNoWeatherData(RemoteViews weatherViews, boolean smallWidget, WeatherModel w) {
+        int color = w.color;
+        boolean firstRun = w.firstRun;
+        String noData = w.noData;
 
         // Hide the normal weather stuff
-        int providerNameResource = Preferences.weatherProvider(this).getNameResourceId();
-        String noData = getString(R.string.weather_cannot_reach_provider, getString(providerNameResource));
         weatherViews.setViewVisibility(R.id.weather_image, View.INVISIBLE);
         if (!smallWidget) {
             weatherViews.setViewVisibility(R.id.weather_city, View.GONE);
@@ -494,16 +964,8 @@ public class ClockWidgetService extends IntentService {
 
     private void setWeatherClickListener(RemoteViews weatherViews, boolean forceRefresh) {
         // Register an onClickListener on the Weather panel, default action is show forecast
-        PendingIntent pi = null;
-        if (forceRefresh) {
-            pi = WeatherUpdateService.getUpdateIntent(this, true);
-        }
-
-        if (pi == null) {
-            Intent i = new Intent(this, ClockWidgetProvider.class);
-            i.setAction(Constants.ACTION_SHOW_FORECAST);
-            pi = PendingIntent.getBroadcast(this, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
-        }
+        PendingIntent pi = forceRefresh
+                ? ClickTargets.getWeatherRefreshIntent(this) : ClickTargets.getForecastIntent(this);
         weatherViews.setOnClickPendingIntent(R.id.weather_panel, pi);
     }
 
@@ -511,34 +973,56 @@ public class ClockWidgetService extends IntentService {
     //===============================================================================================
     // Calendar related functionality
     //===============================================================================================
-    private void refreshCalendar(RemoteViews calendarViews, int widgetId) {
-        final Resources res = getResources();
+    private void refreshCalendar(RemoteViews calendarViews, boolean lowPayload,
+            CalendarModel calendar) {
         // Calendar icon: Overlay the selected color and set the imageview
-        int color = Preferences.calendarFontColor(this);
+        int color = calendar.color;
 
         // Hide the icon if preference set
-        if (Preferences.showCalendarIcon(this)) {
-            calendarViews.setImageViewBitmap(R.id.calendar_icon,
-                    IconUtils.getOverlaidBitmap(res, R.drawable.ic_lock_idle_calendar, color));
+        if (calendar.showIcon) {
+            setTintedIcon(calendarViews, R.id.calendar_icon, R.drawable.ic_lock_idle_calendar,
+                    color, lowPayload);
         } else {
             calendarViews.setImageViewBitmap(R.id.calendar_icon, null);
         }
 
+        // Register an onClickListener on Calendar starting the Calendar app
+        calendarViews.setOnClickPendingIntent(R.id.calendar_icon,
+                ClickTargets.getCalendarIntent(this));
+        calendarViews.setPendingIntentTemplate(R.id.calendar_list,
+                ClickTargets.getEventTemplateIntent(this));
+    }
+
+    private void setCalendarAdapter(RemoteViews calendarViews, int widgetId) {
         // Set up and start the Calendar RemoteViews service
         final Intent remoteAdapterIntent = new Intent(this, CalendarViewsService.class);
         remoteAdapterIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, widgetId);
         remoteAdapterIntent.setData(Uri.parse(remoteAdapterIntent.toUri(Intent.URI_INTENT_SCHEME)));
         calendarViews.setRemoteAdapter(R.id.calendar_list, remoteAdapterIntent);
         calendarViews.setEmptyView(R.id.calendar_list, R.id.calendar_empty_view);
+    }
 
-        // Register an onClickListener on Calendar starting the Calendar app
-        final Intent calendarClickIntent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_APP_CALENDAR);
-        final PendingIntent calendarClickPendingIntent = PendingIntent.getActivity(this, 0, calendarClickIntent,PendingIntent.FLAG_UPDATE_CURRENT);
-        calendarViews.setOnClickPendingIntent(R.id.calendar_icon, calendarClickPendingIntent);
-
-        final Intent eventClickIntent = new Intent(Intent.ACTION_VIEW);
-        final PendingIntent eventClickPendingIntent = PendingIntent.getActivity(this, 0, eventClickIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-        calendarViews.setPendingIntentTemplate(R.id.calendar_list, eventClickPendingIntent);
+    //===============================================================================================
+    // Icon related functionality
+    //===============================================================================================
+    /**
+     * Set an icon tinted with the given color. In low payload mode the host does the tinting
+     * from the resource, otherwise a tinted bitmap is sent along with the views.
+     */
+    private void setTintedIcon(RemoteViews views, int viewId, int resId, int color,
+            boolean lowPayload) {
+        long start = RenderStats.begin();
+        if (lowPayload) {
+            views.setImageViewResource(viewId, resId);
+            views.setInt(viewId, "setColorFilter", color);
+        } else {
+            Bitmap icon = IconUtils.getOverlaidBitmap(getResources(), getPackageName(),
+                    resId, color);
+            views.setImageViewBitmap(viewId, icon);
+            // Clear any tint left over from low payload mode
+            views.setInt(viewId, "setColorFilter", 0);
+        }
+        sStats.end(RenderStats.PHASE_ICONS, start);
     }
 
     public static PendingIntent getRefreshIntent(Context context) {
@@ -548,7 +1032,6 @@ public class ClockWidgetService extends IntentService {
     }
 
     public static void cancelUpdates(Context context) {
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(getRefreshIntent(context));
+        WakeupScheduler.cancel(context, WakeupScheduler.WORK_CALENDAR, getRefreshIntent(context));
     }
 }
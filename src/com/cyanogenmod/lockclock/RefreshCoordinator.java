@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+
+import java.util.ArrayList;
+
+/**
+ * Merges bursts of widget refresh requests into a single ClockWidgetService pass.
+ *
+ * The first request opens a window of WidgetConfig.refreshCoalesceWindow milliseconds,
+ * any request arriving within it only adds its panels to the dirty set. When the window
+ * closes the service is started once with the merged set. For the calendar, the last
+ * refresh or hide request wins.
+ */
+public class RefreshCoordinator {
+    private static final String TAG = "RefreshCoordinator";
+    private static final boolean D = Constants.DEBUG;
+
+    private static RefreshCoordinator sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // Pending state, guarded by this
+    private int mDirtyPanels = WidgetModel.PANEL_NONE;
+    private String mCalendarAction = null;
+    private boolean mScheduled = false;
+    private final ArrayList<BroadcastReceiver.PendingResult> mPendingResults =
+            new ArrayList<BroadcastReceiver.PendingResult>();
+
+    // Statistics, guarded by this
+    private int mRequestCount = 0;
+    private int mPassCount = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private RefreshCoordinator(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public static synchronized RefreshCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RefreshCoordinator(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Request a refresh of the widgets
+     *
+     * @param dirtyPanels The WidgetModel.PANEL_* flags that need to be recomputed
+     * @param calendarAction ClockWidgetService.ACTION_REFRESH_CALENDAR or ACTION_HIDE_CALENDAR,
+     *        or null if the calendar state is not affected
+     * @param result The pending result of the broadcast that triggered this request, finished
+     *        once the service has been started so the process is kept alive until then. May be null.
+     */
+    public synchronized void requestRefresh(int dirtyPanels, String calendarAction,
+            BroadcastReceiver.PendingResult result) {
+        mRequestCount++;
+        mDirtyPanels |= dirtyPanels;
+        if (calendarAction != null) {
+            mCalendarAction = calendarAction;
+        }
+        if (result != null) {
+            mPendingResults.add(result);
+        }
+
+        if (!mScheduled) {
+            mScheduled = true;
+            long window = Preferences.getConfig(mContext).refreshCoalesceWindow;
+            if (D) Log.d(TAG, "Scheduling a refresh pass in " + window + "ms");
+            mHandler.postDelayed(mFlushRunnable, window);
+        } else if (D) {
+            Log.d(TAG, "Merged refresh request into the pending pass, dirty = " + mDirtyPanels);
+        }
+    }
+
+    private void flush() {
+        ArrayList<BroadcastReceiver.PendingResult> results;
+        Intent i = new Intent(mContext, ClockWidgetService.class);
+        synchronized (this) {
+            i.setAction(mCalendarAction != null ? mCalendarAction : ClockWidgetService.ACTION_REFRESH);
+            i.putExtra(ClockWidgetService.EXTRA_DIRTY_PANELS, mDirtyPanels);
+
+            results = new ArrayList<BroadcastReceiver.PendingResult>(mPendingResults);
+            mPendingResults.clear();
+            mDirtyPanels = WidgetModel.PANEL_NONE;
+            mCalendarAction = null;
+            mScheduled = false;
+            mPassCount++;
+        }
+
+        // Start the service. The service itself will take care of scheduling refreshes if needed
+        if (D) Log.d(TAG, "Starting the service to update the widgets...");
+        mContext.startService(i);
+
+        for (BroadcastReceiver.PendingResult result : results) {
+            result.finish();
+        }
+    }
+
+    /**
+     * @return The number of refresh requests received
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return The number of service passes the requests were merged into
+     */
+    public synchronized int getPassCount() {
+        return mPassCount;
+    }
+
+    /**
+     * @return The number of requests that did not need a pass of their own
+     */
+    public synchronized int getMergedCount() {
+        // A request that is still pending will get a pass of its own
+        return mRequestCount - mPassCount - (mScheduled ? 1 : 0);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.io.PrintWriter;
+
+/**
+ * Holds back widget renders while the screen is off.
+ *
+ * Nobody can see the widgets with the display off, so ClockWidgetService only records the
+ * panels that became dirty and returns. The first SCREEN_ON afterwards requests a single
+ * refresh with everything that was recorded.
+ */
+class RenderGate {
+    private static final String TAG = "RenderGate";
+    private static final boolean D = Constants.DEBUG;
+
+    // All guarded by RenderGate.class
+    private static int sDeferredPanels = WidgetModel.PANEL_NONE;
+    private static String sDeferredCalendarAction = null;
+    private static int sDeferredCount = 0;
+    private static int sCatchUpCount = 0;
+
+    private RenderGate() {
+    }
+
+    static boolean isScreenOn(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return pm.isScreenOn();
+    }
+
+    /**
+     * Record a refresh that was not rendered because the screen is off
+     */
+    static synchronized void defer(int dirtyPanels, String calendarAction) {
+        if (D) Log.d(TAG, "Screen is off, deferring refresh of panels " + dirtyPanels);
+        sDeferredPanels |= dirtyPanels;
+        if (calendarAction != null) {
+            sDeferredCalendarAction = calendarAction;
+        }
+        sDeferredCount++;
+    }
+
+    /**
+     * Request the refresh of everything deferred while the screen was off. Does nothing if
+     * nothing was deferred and no other panels are needed.
+     *
+     * @param extraPanels Panels to refresh along with the deferred ones
+     * @param result The pending result of the broadcast that triggered the catch-up, finished
+     *        once the refresh has been started. May be null.
+     */
+    static void catchUp(Context context, int extraPanels, BroadcastReceiver.PendingResult result) {
+        int panels;
+        String calendarAction;
+        synchronized (RenderGate.class) {
+            panels = sDeferredPanels | extraPanels;
+            calendarAction = sDeferredCalendarAction;
+            sDeferredPanels = WidgetModel.PANEL_NONE;
+            sDeferredCalendarAction = null;
+            if (panels == WidgetModel.PANEL_NONE && !ClockWidgetService.hasRendered()) {
+                // The process was restarted while the screen was off, so whatever was
+                // deferred is lost. Play it safe and redraw everything.
+                panels = WidgetModel.PANEL_ALL;
+            }
+            if (panels == WidgetModel.PANEL_NONE) {
+                if (result != null) {
+                    result.finish();
+                }
+                return;
+            }
+            sCatchUpCount++;
+        }
+
+        if (D) Log.d(TAG, "Catching up on deferred panels " + panels);
+        RefreshCoordinator.getInstance(context).requestRefresh(panels, calendarAction, result);
+    }
+
+    static synchronized void dump(PrintWriter pw) {
+        pw.println("Deferred refreshes: " + sDeferredCount + ", catch-ups: " + sCatchUpCount
+                + ", pending panels: " + sDeferredPanels);
+    }
+}
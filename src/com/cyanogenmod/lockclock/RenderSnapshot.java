@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The models of the last successful refresh pass, persisted in app private storage.
+ *
+ * When the process starts again, after a reboot or being killed, the widgets can be drawn
+ * from the snapshot straight away instead of waiting for the weather data to be parsed and
+ * everything else to be rebuilt. The file is versioned with the app version code and
+ * replaced atomically, a snapshot that cannot be read is simply ignored.
+ */
+class RenderSnapshot {
+    private static final String TAG = "RenderSnapshot";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String FILE_NAME = "render_snapshot";
+    private static final int MAGIC = 0x4c434b53; // "LCKS"
+    private static final int FORMAT_VERSION = 1;
+
+    // Both guarded by RenderSnapshot.class
+    private static int sVersionCode = -1;
+    // The models the file currently holds, null if unknown
+    private static SparseArray<WidgetModel> sPersisted = null;
+
+    private RenderSnapshot() {
+    }
+
+    /**
+     * @return The persisted models by widget id, or null if there is no usable snapshot
+     */
+    static synchronized SparseArray<WidgetModel> read(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            // Read it in one go, the models are then parsed from memory
+            byte[] data = new byte[(int) file.length()];
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                read += count;
+            }
+
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+            if (din.readInt() != MAGIC || din.readInt() != FORMAT_VERSION
+                    || din.readInt() != getVersionCode(context)) {
+                if (D) Log.d(TAG, "Ignoring snapshot of another version");
+                return null;
+            }
+            int count = din.readInt();
+            SparseArray<WidgetModel> models = new SparseArray<WidgetModel>(count);
+            for (int i = 0; i < count; i++) {
+                int id = din.readInt();
+                models.put(id, WidgetModel.readFrom(din));
+            }
+            sPersisted = models.clone();
+            return models;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the render snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the persisted snapshot with the given models, unless it holds them already
+     */
+    static synchronized void write(Context context, SparseArray<WidgetModel> models) {
+        if (isPersisted(models)) {
+            if (D) Log.d(TAG, "Snapshot is up to date, not writing it");
+            return;
+        }
+
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(getVersionCode(context));
+            out.writeInt(models.size());
+            for (int i = 0; i < models.size(); i++) {
+                out.writeInt(models.keyAt(i));
+                models.valueAt(i).writeTo(out);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            fos = null;
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+            sPersisted = models.clone();
+            if (D) Log.d(TAG, "Wrote snapshot of " + models.size() + " widget(s)");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the render snapshot", e);
+            tmp.delete();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    static synchronized void delete(Context context) {
+        new File(context.getFilesDir(), FILE_NAME).delete();
+        sPersisted = null;
+    }
+
+    private static boolean isPersisted(SparseArray<WidgetModel> models) {
+        if (sPersisted == null || sPersisted.size() != models.size()) {
+            return false;
+        }
+        for (int i = 0; i < models.size(); i++) {
+            if (sPersisted.keyAt(i) != models.keyAt(i)
+                    || !sPersisted.valueAt(i).equals(models.valueAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The version cannot change while the process is running, so ask only once
+    private static int getVersionCode(Context context) {
+        if (sVersionCode < 0) {
+            try {
+                sVersionCode = context.getPackageManager()
+                        .getPackageInfo(context.getPackageName(), 0).versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                sVersionCode = 0;
+            }
+        }
+        return sVersionCode;
+    }
+}
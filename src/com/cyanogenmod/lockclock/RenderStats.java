@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Timing statistics of the widget refresh passes.
+ *
+ * The time spent in each phase of a pass is accumulated with begin()/end() and stored in
+ * a fixed size ring buffer by finishPass(). Recording does not allocate, the percentiles
+ * are only computed when dumped.
+ */
+class RenderStats {
+    static final int PHASE_CLOCK = 0;
+    static final int PHASE_ALARM = 1;
+    static final int PHASE_CALENDAR = 2;
+    static final int PHASE_WEATHER_DATA = 3;
+    static final int PHASE_ICONS = 4;
+    static final int PHASE_IPC = 5;
+    static final int PHASE_TOTAL = 6;
+    private static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = new String[] {
+        "clock", "alarm", "calendar", "weather data", "icons", "ipc", "total"
+    };
+
+    // What started a pass, one per service action
+    static final int TRIGGER_REFRESH = 0;
+    static final int TRIGGER_REFRESH_CALENDAR = 1;
+    static final int TRIGGER_HIDE_CALENDAR = 2;
+    static final int TRIGGER_CLOCK_TICK = 3;
+    static final int TRIGGER_OTHER = 4;
+    private static final int TRIGGER_COUNT = 5;
+
+    private static final String[] TRIGGER_NAMES = new String[] {
+        "refresh", "refresh calendar", "hide calendar", "clock tick", "other"
+    };
+
+    private final int mCapacity;
+    private final long[][] mSamples;
+    private final long[] mCurrent = new long[PHASE_COUNT];
+    private int mNext = 0;
+    private int mSize = 0;
+
+    // Parcelled size of the RemoteViews sent to the host, one sample per update call
+    private final long[] mPayloads;
+    private int mPayloadNext = 0;
+    private int mPayloadSize = 0;
+    private long mPayloadTotal = 0;
+    private int mPayloadCount = 0;
+
+    private int mUpdatedWidgets = 0;
+    private int mSkippedWidgets = 0;
+    private int mHostCalls = 0;
+    private int mPassCount = 0;
+    private final int[] mTriggers = new int[TRIGGER_COUNT];
+
+    RenderStats(int capacity) {
+        mCapacity = capacity;
+        mSamples = new long[PHASE_COUNT][capacity];
+        mPayloads = new long[capacity];
+    }
+
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since start to the phase of the current pass
+     */
+    synchronized void end(int phase, long start) {
+        mCurrent[phase] += System.nanoTime() - start;
+    }
+
+    synchronized void countTrigger(int trigger) {
+        mTriggers[trigger]++;
+    }
+
+    synchronized void countWidgets(int updated, int skipped) {
+        mUpdatedWidgets += updated;
+        mSkippedWidgets += skipped;
+    }
+
+    /**
+     * Count calls made to the widget host, each one is a binder transaction
+     */
+    synchronized void countHostCalls(int calls) {
+        mHostCalls += calls;
+    }
+
+    synchronized void recordPayload(int bytes) {
+        mPayloads[mPayloadNext] = bytes;
+        mPayloadNext = (mPayloadNext + 1) % mCapacity;
+        if (mPayloadSize < mCapacity) {
+            mPayloadSize++;
+        }
+        mPayloadTotal += bytes;
+        mPayloadCount++;
+    }
+
+    /**
+     * Store the current pass in the ring buffer and start a new one
+     */
+    synchronized void finishPass(long start) {
+        mCurrent[PHASE_TOTAL] = System.nanoTime() - start;
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            mSamples[phase][mNext] = mCurrent[phase];
+            mCurrent[phase] = 0;
+        }
+        mNext = (mNext + 1) % mCapacity;
+        if (mSize < mCapacity) {
+            mSize++;
+        }
+        mPassCount++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Refresh passes (last " + mSize + ", times in ms):");
+        long[] sorted = new long[mSize];
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            System.arraycopy(mSamples[phase], 0, sorted, 0, mSize);
+            Arrays.sort(sorted);
+            pw.println(String.format("  %-13s p50 %8.3f  p95 %8.3f  max %8.3f",
+                    PHASE_NAMES[phase], percentile(sorted, 50), percentile(sorted, 95),
+                    percentile(sorted, 100)));
+        }
+        sorted = new long[mPayloadSize];
+        System.arraycopy(mPayloads, 0, sorted, 0, mPayloadSize);
+        Arrays.sort(sorted);
+        pw.println(String.format("Payload per update (last %d, bytes): p50 %d  p95 %d  max %d",
+                mPayloadSize, percentileValue(sorted, 50), percentileValue(sorted, 95),
+                percentileValue(sorted, 100)));
+        pw.println("Payload total: " + mPayloadTotal + " bytes in " + mPayloadCount + " updates");
+        pw.println("Widgets updated: " + mUpdatedWidgets + ", skipped: " + mSkippedWidgets);
+        pw.println(String.format("Host calls: %d in %d passes (%.2f per pass)", mHostCalls,
+                mPassCount, mPassCount == 0 ? 0f : (float) mHostCalls / mPassCount));
+        pw.println("Triggers:");
+        for (int trigger = 0; trigger < TRIGGER_COUNT; trigger++) {
+            pw.println("  " + TRIGGER_NAMES[trigger] + ": " + mTriggers[trigger]);
+        }
+    }
+
+    private static double percentile(long[] sorted, int percentile) {
+        return percentileValue(sorted, percentile) / 1000000.0;
+    }
+
+    private static long percentileValue(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+}
@@ -16,54 +16,105 @@
 
 package com.cyanogenmod.lockclock;
 
+import com.cyanogenmod.lockclock.misc.ClickTargets;
 import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.FormatterCache;
+import com.cyanogenmod.lockclock.misc.IconUtils;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WakeupScheduler;
+import com.cyanogenmod.lockclock.misc.WidgetUtils;
+import com.cyanogenmod.lockclock.weather.HttpRetriever;
 import com.cyanogenmod.lockclock.ClockWidgetProvider;
 import com.cyanogenmod.lockclock.ClockWidgetService;
 
-import android.app.AlarmManager;
 import android.app.Application;
 import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.Handler;
 import android.provider.ContactsContract;
+import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.Locale;
+
 public class WidgetApplication extends Application {
     private static final String TAG = "WidgetApplication";
     private static boolean D = Constants.DEBUG;
     private static final long INTERVAL_ONE_MINUTE = 60000L;
 
-    private BroadcastReceiver mTickReceiver = null;
+    private BroadcastReceiver mScreenReceiver = null;
+    private BroadcastReceiver mPackageReceiver = null;
     private ContactsObserver mContactsObserver = null;
+    private ContentObserver mTimeFormatObserver = null;
+    private NextAlarmObserver mNextAlarmObserver = null;
     private final Handler mContentHandler = new Handler();
 
+    // The uppercased next alarm, "" if there is none and null if it has to be (re)loaded
+    private static final Object sNextAlarmLock = new Object();
+    private static String sNextAlarm = null;
+    private static int sNextAlarmGeneration = 0;
+
     /**
-     * BroadReceiver and supporting functions used for handling clock ticks
-     * for the TextView clock support (API 16) by scheduling a repeating
-     * alarm event every 60 seconds and triggering a refresh of the widget
+     * BroadcastReceiver tracking the screen state. Refreshes requested while the screen was
+     * off are caught up when it comes back on.
+     *
+     * It also drives the TextView clock support (API 16). The minute alarm driving the clock
+     * is only kept while the screen is on; when the screen comes back on the clock is brought
+     * up to date along with the catch-up refresh and the alarm restarted.
      */
-    public class TickReceiver extends BroadcastReceiver {
+    public class ScreenReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (Intent.ACTION_TIME_TICK.equals(action)){
-                if (D) Log.d(TAG, "Clock tick event received");
-
-                // Schedule the clock refresh alarm event
-                scheduleClockRefresh(context);
+            boolean textClock = WidgetUtils.isTextClockAvailable();
+            if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                if (!textClock) {
+                    if (D) Log.d(TAG, "Screen off, suspending the clock refresh");
+                    cancelClockRefresh(context);
+                }
+            } else if (Intent.ACTION_SCREEN_ON.equals(action) && hasWidgets(context)) {
+                int extraPanels = WidgetModel.PANEL_NONE;
+                if (!textClock) {
+                    if (D) Log.d(TAG, "Screen on, resuming the clock refresh");
+                    scheduleClockRefresh(context);
+                    extraPanels = WidgetModel.PANEL_CLOCK;
+                }
+                RenderGate.catchUp(context, extraPanels, goAsync());
+            }
+        }
+    }
 
-                // Refresh the widget
-                Intent refreshIntent = new Intent(context, ClockWidgetProvider.class);
-                refreshIntent.setAction(ClockWidgetService.ACTION_REFRESH);
-                context.sendBroadcast(refreshIntent);
+    /**
+     * BroadcastReceiver keeping the widget click targets up to date when the clock app is
+     * installed, removed or updated, and the resolved weather icons when an icon pack is
+     */
+    public class PackageReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            // Any package may be an icon pack
+            IconUtils.invalidateIconResources();
+            if (!ClickTargets.isClickTargetPackage(packageName)) {
+                return;
+            }
 
-                // We no longer need the tick receiver, its done its job, stop it
-                stopTickReceiver();
+            if (D) Log.d(TAG, "Package " + packageName + " changed, resolving the click targets");
+            ClickTargets.invalidate();
+            if (hasWidgets(context)) {
+                // The models do not reflect the click targets, make sure the widgets are redrawn
+                ClockWidgetService.invalidateWidgets(null);
+                RefreshCoordinator.getInstance(context)
+                        .requestRefresh(WidgetModel.PANEL_CLOCK, null, null);
             }
         }
     }
@@ -88,43 +139,153 @@ public class WidgetApplication extends Application {
         }
     }
 
-    public void startTickReceiver() {
-        // Clean up first, just in case
-        stopTickReceiver();
+    /**
+     * Keeps the cached next alarm in sync with the system setting. The alarm broadcasts may
+     * arrive before the setting is written, so the alarm panel is refreshed again here.
+     */
+    class NextAlarmObserver extends ContentObserver {
 
-        // Start the new receiver
-        if (D) Log.d(TAG, "Registering clock tick receiver");
-        mTickReceiver = new TickReceiver();
-        registerReceiver(mTickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
-    }
+        public NextAlarmObserver() {
+            super(mContentHandler);
+        }
 
-    public void stopTickReceiver() {
-        if (mTickReceiver != null) {
-            if (D) Log.d(TAG, "Cleaning up: Unregistering clock tick receiver");
-            unregisterReceiver(mTickReceiver);
-            mTickReceiver = null;
+        public void onChange(boolean selfChange) {
+            if (D) Log.v(TAG, "NextAlarmObserver.onChange()");
+            invalidateNextAlarm();
+            if (hasWidgets(WidgetApplication.this)) {
+                RefreshCoordinator.getInstance(WidgetApplication.this)
+                        .requestRefresh(WidgetModel.PANEL_ALARM, null, null);
+            }
         }
     }
 
-    private static void scheduleClockRefresh(Context context) {
-        if (D) Log.d(TAG, "Starting clock refresh alarm");
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        long due = System.currentTimeMillis() + INTERVAL_ONE_MINUTE;
-        am.setRepeating(AlarmManager.RTC, due, INTERVAL_ONE_MINUTE, getClockRefreshIntent(context));
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        HttpRetriever.init(this);
+
+        // The screen state broadcasts can only be received by a registered receiver
+        mScreenReceiver = new ScreenReceiver();
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, filter);
+
+        mPackageReceiver = new PackageReceiver();
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
+
+        // The cached formatters depend on the 12/24 hour setting
+        mTimeFormatObserver = new ContentObserver(mContentHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (D) Log.v(TAG, "Time format changed");
+                FormatterCache.invalidate();
+            }
+        };
+        getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.TIME_12_24), false, mTimeFormatObserver);
+
+        mNextAlarmObserver = new NextAlarmObserver();
+        getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.NEXT_ALARM_FORMATTED), false,
+                mNextAlarmObserver);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+
+        // Dimensions and density may have changed, the widget layouts need to be recomputed
+        WidgetUtils.invalidateWidgetLayouts(null);
+        // The resources of icon packs are bound to the old configuration
+        IconUtils.invalidateIconResources();
+        // As may have the locale
+        FormatterCache.invalidate();
+        invalidateNextAlarm();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        IconUtils.trimBitmapCache(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        IconUtils.trimBitmapCache(TRIM_MEMORY_COMPLETE);
+    }
+
+    static boolean hasWidgets(Context context) {
+        ComponentName thisWidget = new ComponentName(context, ClockWidgetProvider.class);
+        int[] ids = AppWidgetManager.getInstance(context).getAppWidgetIds(thisWidget);
+        return ids != null && ids.length != 0;
+    }
+
+    /**
+     * Schedule the next clock tick exactly on the next minute boundary. The alarm does not
+     * wake the device, ticks due while asleep are delivered on wake up.
+     */
+    public static void scheduleClockRefresh(Context context) {
+        long now = System.currentTimeMillis();
+        long due = (now / INTERVAL_ONE_MINUTE + 1) * INTERVAL_ONE_MINUTE;
+        if (D) Log.d(TAG, "Scheduling clock refresh in " + (due - now) + "ms");
+        WakeupScheduler.schedule(context, WakeupScheduler.WORK_CLOCK,
+                getClockRefreshIntent(context), due, due, false);
     }
 
     public static void cancelClockRefresh(Context context) {
         if (D) Log.d(TAG, "Cleaning up: Stopping clock refresh alarm");
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(getClockRefreshIntent(context));
+        WakeupScheduler.cancel(context, WakeupScheduler.WORK_CLOCK, getClockRefreshIntent(context));
     }
 
     private static PendingIntent getClockRefreshIntent(Context context) {
         Intent i = new Intent(context, ClockWidgetService.class);
-        i.setAction(ClockWidgetService.ACTION_REFRESH);
+        i.setAction(ClockWidgetService.ACTION_CLOCK_TICK);
         return PendingIntent.getService(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
+    /**
+     * @return The uppercased next alarm or null if there is no next alarm. The settings
+     *         provider is only queried after the cached value has been invalidated.
+     */
+    public static String getNextAlarm(Context context) {
+        int generation;
+        synchronized (sNextAlarmLock) {
+            if (sNextAlarm != null) {
+                return sNextAlarm.length() == 0 ? null : sNextAlarm;
+            }
+            generation = sNextAlarmGeneration;
+        }
+
+        String nextAlarm = Settings.System.getString(
+                context.getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED);
+        nextAlarm = TextUtils.isEmpty(nextAlarm) ? "" : nextAlarm.toUpperCase(Locale.getDefault());
+        if (D) Log.v(TAG, "Loaded next alarm '" + nextAlarm + "'");
+
+        synchronized (sNextAlarmLock) {
+            // Only cache it if no change came in while we were reading it
+            if (generation == sNextAlarmGeneration) {
+                sNextAlarm = nextAlarm;
+            }
+        }
+        return nextAlarm.length() == 0 ? null : nextAlarm;
+    }
+
+    /**
+     * Drop the cached next alarm, it is reloaded by the next refresh
+     */
+    public static void invalidateNextAlarm() {
+        synchronized (sNextAlarmLock) {
+            sNextAlarmGeneration++;
+            sNextAlarm = null;
+        }
+    }
+
     public void registerContactsObserver() {
         if (D) Log.v(TAG, "App.registerContactObserver()");
         if (mContactsObserver == null) {
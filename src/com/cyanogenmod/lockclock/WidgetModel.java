@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.text.TextUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Immutable description of everything a single widget instance displays.
+ *
+ * ClockWidgetService builds one of these per widget id on every refresh and compares it
+ * with the model it pushed last time, so that only the panels which actually changed are
+ * sent to the host.
+ */
+public class WidgetModel {
+    public static final int PANEL_CLOCK = 1 << 0;
+    public static final int PANEL_ALARM = 1 << 1;
+    public static final int PANEL_WEATHER = 1 << 2;
+    public static final int PANEL_CALENDAR = 1 << 3;
+    public static final int PANEL_NONE = 0;
+    public static final int PANEL_ALL = PANEL_CLOCK | PANEL_ALARM | PANEL_WEATHER | PANEL_CALENDAR;
+
+    public final boolean smallWidget;
+    public final boolean lowPayload;
+    public final ClockModel clock;
+    public final AlarmModel alarm;
+    public final WeatherModel weather;
+    public final CalendarModel calendar;
+
+    public WidgetModel(boolean smallWidget, boolean lowPayload, ClockModel clock,
+            AlarmModel alarm, WeatherModel weather, CalendarModel calendar) {
+        this.smallWidget = smallWidget;
+        this.lowPayload = lowPayload;
+        this.clock = clock;
+        this.alarm = alarm;
+        this.weather = weather;
+        this.calendar = calendar;
+    }
+
+    /**
+     * @return A copy of this model with the clock panel replaced
+     */
+    public WidgetModel withClock(ClockModel clock) {
+        return new WidgetModel(smallWidget, lowPayload, clock, alarm, weather, calendar);
+    }
+
+    /**
+     * @return A mask of the PANEL_* flags that differ from the previously pushed model,
+     *         PANEL_ALL if there is no previous model or the layout or render mode changed
+     */
+    public int getChangedPanels(WidgetModel previous) {
+        if (previous == null || previous.smallWidget != smallWidget
+                || previous.lowPayload != lowPayload) {
+            return PANEL_ALL;
+        }
+
+        int changed = PANEL_NONE;
+        if (!clock.equals(previous.clock)) {
+            changed |= PANEL_CLOCK;
+        }
+        if (!alarm.equals(previous.alarm)) {
+            changed |= PANEL_ALARM;
+        }
+        if (!weather.equals(previous.weather)) {
+            changed |= PANEL_WEATHER;
+        }
+        if (!calendar.equals(previous.calendar)) {
+            changed |= PANEL_CALENDAR;
+        }
+        return changed;
+    }
+
+    /**
+     * Write the model in the binary format read by readFrom(). The format is private to
+     * RenderSnapshot, which versions it.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeBoolean(smallWidget);
+        out.writeBoolean(lowPayload);
+        clock.writeTo(out);
+        alarm.writeTo(out);
+        weather.writeTo(out);
+        calendar.writeTo(out);
+    }
+
+    public static WidgetModel readFrom(DataInputStream in) throws IOException {
+        boolean smallWidget = in.readBoolean();
+        boolean lowPayload = in.readBoolean();
+        ClockModel clock = ClockModel.readFrom(in);
+        AlarmModel alarm = AlarmModel.readFrom(in);
+        WeatherModel weather = WeatherModel.readFrom(in);
+        CalendarModel calendar = CalendarModel.readFrom(in);
+        return new WidgetModel(smallWidget, lowPayload, clock, alarm, weather, calendar);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + (smallWidget ? 1231 : 1237);
+        result = prime * result + (lowPayload ? 1231 : 1237);
+        result = prime * result + clock.hashCode();
+        result = prime * result + alarm.hashCode();
+        result = prime * result + weather.hashCode();
+        result = prime * result + calendar.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        WidgetModel other = (WidgetModel) obj;
+        return smallWidget == other.smallWidget
+                && lowPayload == other.lowPayload
+                && clock.equals(other.clock)
+                && alarm.equals(other.alarm)
+                && weather.equals(other.weather)
+                && calendar.equals(other.calendar);
+    }
+
+    private static int hash(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    //===============================================================================================
+    // Panel models
+    //===============================================================================================
+    /**
+     * The clock, date and AM/PM indicator. The time fields are only set on API 16 where
+     * the widget uses plain TextViews instead of TextClock.
+     */
+    public static class ClockModel {
+        public final boolean digital;
+        public final boolean boldHours;
+        public final boolean boldMinutes;
+        public final boolean boldDate;
+        public final boolean showAmPm;
+        public final String amPm;
+        public final int color;
+        public final float scale;
+        public final String hours;
+        public final String minutes;
+        public final String date;
+
+        public ClockModel(boolean digital, boolean boldHours, boolean boldMinutes,
+                boolean boldDate, boolean showAmPm, String amPm, int color, float scale,
+                String hours, String minutes, String date) {
+            this.digital = digital;
+            this.boldHours = boldHours;
+            this.boldMinutes = boldMinutes;
+            this.boldDate = boldDate;
+            this.showAmPm = showAmPm;
+            this.amPm = amPm;
+            this.color = color;
+            this.scale = scale;
+            this.hours = hours;
+            this.minutes = minutes;
+            this.date = date;
+        }
+
+        /**
+         * @return true if the clocks only differ by the displayed time and date
+         */
+        public boolean hasSameStyle(ClockModel other) {
+            return digital == other.digital
+                    && boldHours == other.boldHours
+                    && boldMinutes == other.boldMinutes
+                    && boldDate == other.boldDate
+                    && showAmPm == other.showAmPm
+                    && color == other.color
+                    && Float.compare(scale, other.scale) == 0;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeBoolean(digital);
+            out.writeBoolean(boldHours);
+            out.writeBoolean(boldMinutes);
+            out.writeBoolean(boldDate);
+            out.writeBoolean(showAmPm);
+            writeString(out, amPm);
+            out.writeInt(color);
+            out.writeFloat(scale);
+            writeString(out, hours);
+            writeString(out, minutes);
+            writeString(out, date);
+        }
+
+        static ClockModel readFrom(DataInputStream in) throws IOException {
+            return new ClockModel(in.readBoolean(), in.readBoolean(), in.readBoolean(),
+                    in.readBoolean(), in.readBoolean(), readString(in), in.readInt(),
+                    in.readFloat(), readString(in), readString(in), readString(in));
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (digital ? 1231 : 1237);
+            result = prime * result + (boldHours ? 1231 : 1237);
+            result = prime * result + (boldMinutes ? 1231 : 1237);
+            result = prime * result + (boldDate ? 1231 : 1237);
+            result = prime * result + (showAmPm ? 1231 : 1237);
+            result = prime * result + hash(amPm);
+            result = prime * result + color;
+            result = prime * result + Float.floatToIntBits(scale);
+            result = prime * result + hash(hours);
+            result = prime * result + hash(minutes);
+            result = prime * result + hash(date);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            ClockModel other = (ClockModel) obj;
+            return digital == other.digital
+                    && boldHours == other.boldHours
+                    && boldMinutes == other.boldMinutes
+                    && boldDate == other.boldDate
+                    && showAmPm == other.showAmPm
+                    && color == other.color
+                    && Float.compare(scale, other.scale) == 0
+                    && TextUtils.equals(amPm, other.amPm)
+                    && TextUtils.equals(hours, other.hours)
+                    && TextUtils.equals(minutes, other.minutes)
+                    && TextUtils.equals(date, other.date);
+        }
+    }
+
+    /**
+     * The next alarm indicator, nextAlarm is null when nothing should be shown
+     */
+    public static class AlarmModel {
+        public final String nextAlarm;
+        public final int color;
+        public final boolean bold;
+
+        public AlarmModel(String nextAlarm, int color, boolean bold) {
+            this.nextAlarm = nextAlarm;
+            this.color = color;
+            this.bold = bold;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeString(out, nextAlarm);
+            out.writeInt(color);
+            out.writeBoolean(bold);
+        }
+
+        static AlarmModel readFrom(DataInputStream in) throws IOException {
+            return new AlarmModel(readString(in), in.readInt(), in.readBoolean());
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + hash(nextAlarm);
+            result = prime * result + color;
+            result = prime * result + (bold ? 1231 : 1237);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            AlarmModel other = (AlarmModel) obj;
+            return color == other.color
+                    && bold == other.bold
+                    && TextUtils.equals(nextAlarm, other.nextAlarm);
+        }
+    }
+
+    /**
+     * The weather panel. When hasData is false only the color, firstRun and
+     * noData fields are meaningful.
+     */
+    public static class WeatherModel {
+        public final boolean visible;
+        public final boolean hasData;
+        public final boolean firstRun;
+        public final int color;
+        public final int timestampColor;
+        public final String iconSet;
+        public final int conditionCode;
+        public final String condition;
+        public final String temperature;
+        public final String city;
+        public final boolean showCity;
+        public final String timestamp;
+        public final String lowHigh;
+        public final String noData;
+
+        public WeatherModel(boolean visible, boolean hasData, boolean firstRun, int color,
+                int timestampColor, String iconSet, int conditionCode, String condition,
+                String temperature, String city, boolean showCity, String timestamp,
+                String lowHigh, String noData) {
+            this.visible = visible;
+            this.hasData = hasData;
+            this.firstRun = firstRun;
+            this.color = color;
+            this.timestampColor = timestampColor;
+            this.iconSet = iconSet;
+            this.conditionCode = conditionCode;
+            this.condition = condition;
+            this.temperature = temperature;
+            this.city = city;
+            this.showCity = showCity;
+            this.timestamp = timestamp;
+            this.lowHigh = lowHigh;
+            this.noData = noData;
+        }
+
+        public static WeatherModel hidden() {
+            return new WeatherModel(false, false, false, 0, 0, null, 0,
+                    null, null, null, false, null, null, null);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeBoolean(visible);
+            out.writeBoolean(hasData);
+            out.writeBoolean(firstRun);
+            out.writeInt(color);
+            out.writeInt(timestampColor);
+            writeString(out, iconSet);
+            out.writeInt(conditionCode);
+            writeString(out, condition);
+            writeString(out, temperature);
+            writeString(out, city);
+            out.writeBoolean(showCity);
+            writeString(out, timestamp);
+            writeString(out, lowHigh);
+            writeString(out, noData);
+        }
+
+        static WeatherModel readFrom(DataInputStream in) throws IOException {
+            return new WeatherModel(in.readBoolean(), in.readBoolean(), in.readBoolean(),
+                    in.readInt(), in.readInt(), readString(in), in.readInt(), readString(in),
+                    readString(in), readString(in), in.readBoolean(), readString(in),
+                    readString(in), readString(in));
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (visible ? 1231 : 1237);
+            result = prime * result + (hasData ? 1231 : 1237);
+            result = prime * result + (firstRun ? 1231 : 1237);
+            result = prime * result + color;
+            result = prime * result + timestampColor;
+            result = prime * result + hash(iconSet);
+            result = prime * result + conditionCode;
+            result = prime * result + hash(condition);
+            result = prime * result + hash(temperature);
+            result = prime * result + hash(city);
+            result = prime * result + (showCity ? 1231 : 1237);
+            result = prime * result + hash(timestamp);
+            result = prime * result + hash(lowHigh);
+            result = prime * result + hash(noData);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            WeatherModel other = (WeatherModel) obj;
+            return visible == other.visible
+                    && hasData == other.hasData
+                    && firstRun == other.firstRun
+                    && color == other.color
+                    && timestampColor == other.timestampColor
+                    && conditionCode == other.conditionCode
+                    && showCity == other.showCity
+                    && TextUtils.equals(iconSet, other.iconSet)
+                    && TextUtils.equals(condition, other.condition)
+                    && TextUtils.equals(temperature, other.temperature)
+                    && TextUtils.equals(city, other.city)
+                    && TextUtils.equals(timestamp, other.timestamp)
+                    && TextUtils.equals(lowHigh, other.lowHigh)
+                    && TextUtils.equals(noData, other.noData);
+        }
+    }
+
+    /**
+     * The calendar panel. The events themselves are served by CalendarViewsService and
+     * are not part of the model.
+     */
+    public static class CalendarModel {
+        public final boolean visible;
+        public final boolean showIcon;
+        public final int color;
+
+        public CalendarModel(boolean visible, boolean showIcon, int color) {
+            this.visible = visible;
+            this.showIcon = showIcon;
+            this.color = color;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeBoolean(visible);
+            out.writeBoolean(showIcon);
+            out.writeInt(color);
+        }
+
+        static CalendarModel readFrom(DataInputStream in) throws IOException {
+            return new CalendarModel(in.readBoolean(), in.readBoolean(), in.readInt());
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (visible ? 1231 : 1237);
+            result = prime * result + (showIcon ? 1231 : 1237);
+            result = prime * result + color;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            CalendarModel other = (CalendarModel) obj;
+            return visible == other.visible
+                    && showIcon == other.showIcon
+                    && color == other.color;
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.cyanogenmod.lockclock.calendar;
 
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.ContentUris;
 import android.content.Context;
@@ -44,6 +43,8 @@ import com.cyanogenmod.lockclock.R;
 import com.cyanogenmod.lockclock.calendar.CalendarInfo.EventInfo;
 import com.cyanogenmod.lockclock.misc.Constants;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WakeupScheduler;
+import com.cyanogenmod.lockclock.misc.WidgetConfig;
 
 import java.text.ParseException;
 import java.text.ParsePosition;
@@ -70,6 +71,8 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
     private static final long UPCOMING_EVENT_HOURS_IN_MILLIS =
             Constants.CALENDAR_UPCOMING_EVENTS_FROM_HOUR * 60L * 60L * 1000L;
     private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+    // How late the refresh at an event boundary may be
+    private static final long UPDATE_TOLERANCE = 60L * 1000L;
 
     // When parsing a date without a year, the system assumes 1970, which wasn't a leap-year.
     // Let's add a one-off hack for that day of the year
@@ -152,8 +155,9 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
             return null;
         }
 
-        boolean highlightNext = Preferences.calendarHighlightUpcomingEvents(mContext);
-        boolean nextBold = Preferences.calendarUpcomingEventsBold(mContext);
+        final WidgetConfig config = Preferences.getConfig(mContext);
+        boolean highlightNext = config.calendarHighlightUpcoming;
+        boolean nextBold = config.calendarUpcomingBold;
         int color, detailsColor;
         final RemoteViews itemViews = new RemoteViews(mContext.getPackageName(),
                 R.layout.calendar_item);
@@ -161,13 +165,13 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
 
         // Add the event text fields
         if (highlightNext && isUpcoming(event)) {
-            color = Preferences.calendarUpcomingEventsFontColor(mContext);
-            detailsColor = Preferences.calendarUpcomingEventsDetailsFontColor(mContext);
+            color = config.calendarUpcomingFontColor;
+            detailsColor = config.calendarUpcomingDetailsFontColor;
             itemViews.setTextViewText(R.id.calendar_event_title, getSpannableString(event.title, nextBold));
             itemViews.setTextViewText(R.id.calendar_event_details, getSpannableString(event.description, nextBold));
         } else {
-            color = Preferences.calendarFontColor(mContext);
-            detailsColor = Preferences.calendarDetailsFontColor(mContext);
+            color = config.calendarFontColor;
+            detailsColor = config.calendarDetailsFontColor;
             itemViews.setTextViewText(R.id.calendar_event_title, event.title);
             itemViews.setTextViewText(R.id.calendar_event_details, event.description);
         }
@@ -222,11 +226,12 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
 
     private void updateCalendarInfo(Context context) {
         // Load the settings
-        Set<String> calendarList = Preferences.calendarsToDisplay(context);
-        boolean remindersOnly = Preferences.showEventsWithRemindersOnly(context);
-        boolean hideAllDay = !Preferences.showAllDayEvents(context);
-        boolean showAnniversaries = Preferences.calendarShowAnniversaries(context);
-        long lookAhead = Preferences.lookAheadTimeInMs(context);
+        final WidgetConfig config = Preferences.getConfig(context);
+        Set<String> calendarList = config.calendarList;
+        boolean remindersOnly = config.calendarRemindersOnly;
+        boolean hideAllDay = !config.calendarShowAllDay;
+        boolean showAnniversaries = config.calendarShowAnniversaries;
+        long lookAhead = config.lookAheadTimeInMs();
 
         if (D) Log.d(TAG, "Checking for calendar events...");
         getEvents(context, lookAhead, calendarList, remindersOnly, hideAllDay, showAnniversaries);
@@ -350,8 +355,9 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
             final int indexLocation = cursor.getColumnIndex(CalendarContract.Events.EVENT_LOCATION);
             final int indexAllDay = cursor.getColumnIndex(CalendarContract.Events.ALL_DAY);
 
-            final int showLocation = Preferences.calendarLocationMode(context);
-            final int showDescription = Preferences.calendarDescriptionMode(context);
+            final WidgetConfig config = Preferences.getConfig(context);
+            final int showLocation = config.calendarLocationMode;
+            final int showDescription = config.calendarDescriptionMode;
             int eventCount = 0;
 
             // Iterate through returned rows to a maximum number of calendar events
@@ -615,8 +621,9 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
      */
     private long calculateUpdateTime(Context context) {
         final long now = System.currentTimeMillis();
-        final boolean highlightNext = Preferences.calendarHighlightUpcomingEvents(mContext);
-        long lookAhead = Preferences.lookAheadTimeInMs(context);
+        final WidgetConfig config = Preferences.getConfig(context);
+        final boolean highlightNext = config.calendarHighlightUpcoming;
+        long lookAhead = config.lookAheadTimeInMs();
         long minUpdateTime = getMinUpdateFromNow(now);
 
         // Check if there is a calendar event earlier
@@ -670,12 +677,13 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
         long updateTime = calculateUpdateTime(context);
 
         // Clear any old alarms and schedule the new alarm
-        // Since the updates are now only done very infrequently, it can wake the device to ensure
-        // the latest date is available when the user turns the screen on after a few hours sleep
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pi);
+        // There is no point in waking the device for it, the widgets are not rendered while
+        // the screen is off. An alarm due while asleep is delivered when the device wakes up.
         if (updateTime > 0) {
-            am.set(AlarmManager.RTC_WAKEUP, updateTime, pi);
+            WakeupScheduler.schedule(context, WakeupScheduler.WORK_CALENDAR, pi,
+                    updateTime, updateTime + UPDATE_TOLERANCE, false);
+        } else {
+            WakeupScheduler.cancel(context, WakeupScheduler.WORK_CALENDAR, pi);
         }
     }
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.ClockWidgetProvider;
+import com.cyanogenmod.lockclock.weather.WeatherUpdateService;
+
+/**
+ * Registry of the PendingIntents used as click targets on the widget.
+ *
+ * Resolving the clock app takes several PackageManager calls and every PendingIntent is
+ * an ActivityManager call, so they are created once and reused for every refresh. Only the
+ * clock target depends on what is installed, it is resolved again through invalidate()
+ * when one of the clock packages is added, removed or changed.
+ */
+public class ClickTargets {
+    private static final String TAG = "ClickTargets";
+    private static final boolean D = Constants.DEBUG;
+
+    // All guarded by ClickTargets.class
+    private static boolean sClockResolved = false;
+    private static PendingIntent sClock = null;
+    private static PendingIntent sCalendar = null;
+    private static PendingIntent sEventTemplate = null;
+    private static PendingIntent sForecast = null;
+    private static PendingIntent sWeatherRefresh = null;
+
+    private ClickTargets() {
+    }
+
+    /**
+     * @return The intent launching the clock app, or null if none is installed
+     */
+    public static synchronized PendingIntent getClockIntent(Context context) {
+        if (!sClockResolved) {
+            Intent i = WidgetUtils.getDefaultClockIntent(context);
+            sClock = i == null ? null : PendingIntent.getActivity(context, 0, i,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            sClockResolved = true;
+            if (D) Log.d(TAG, "Resolved clock click target: " + i);
+        }
+        return sClock;
+    }
+
+    public static synchronized PendingIntent getCalendarIntent(Context context) {
+        if (sCalendar == null) {
+            Intent i = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_APP_CALENDAR);
+            sCalendar = PendingIntent.getActivity(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        return sCalendar;
+    }
+
+    /**
+     * @return The template filled in by the calendar list items
+     */
+    public static synchronized PendingIntent getEventTemplateIntent(Context context) {
+        if (sEventTemplate == null) {
+            Intent i = new Intent(Intent.ACTION_VIEW);
+            sEventTemplate = PendingIntent.getActivity(context, 0, i,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        return sEventTemplate;
+    }
+
+    public static synchronized PendingIntent getForecastIntent(Context context) {
+        if (sForecast == null) {
+            Intent i = new Intent(context, ClockWidgetProvider.class);
+            i.setAction(Constants.ACTION_SHOW_FORECAST);
+            sForecast = PendingIntent.getBroadcast(context, 0, i,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        return sForecast;
+    }
+
+    public static synchronized PendingIntent getWeatherRefreshIntent(Context context) {
+        if (sWeatherRefresh == null) {
+            sWeatherRefresh = WeatherUpdateService.getUpdateIntent(context, true);
+        }
+        return sWeatherRefresh;
+    }
+
+    /**
+     * @return true if the package affects one of the click targets
+     */
+    public static boolean isClickTargetPackage(String packageName) {
+        return WidgetUtils.isClockPackage(packageName);
+    }
+
+    /**
+     * Resolve the package dependent click targets again on next use
+     */
+    public static synchronized void invalidate() {
+        if (D) Log.d(TAG, "Invalidating the clock click target");
+        sClockResolved = false;
+        sClock = null;
+    }
+}
@@ -35,6 +35,7 @@ public class Constants {
 
     public static final String SHOW_WEATHER = "show_weather";
     public static final String WEATHER_SOURCE = "weather_source";
+    public static final String WEATHER_HEDGE_PROVIDERS = "weather_hedge_providers";
     public static final String WEATHER_USE_CUSTOM_LOCATION = "weather_use_custom_location";
     public static final String WEATHER_CUSTOM_LOCATION_ID = "weather_custom_location_id";
     public static final String WEATHER_CUSTOM_LOCATION_CITY = "weather_custom_location_city";
@@ -66,9 +67,19 @@ public class Constants {
     public static final String CALENDAR_UPCOMING_EVENTS_FONT_COLOR = "calendar_highlight_upcoming_events_font_color";
     public static final String CALENDAR_UPCOMING_EVENTS_DETAILS_FONT_COLOR = "calendar_highlight_upcoming_events_details_font_color";
 
+    // Hidden settings, not exposed in the UI
+    public static final String REFRESH_COALESCE_WINDOW = "refresh_coalesce_window";
+    public static final String DEFAULT_REFRESH_COALESCE_WINDOW = "250";
+    public static final long MAX_REFRESH_COALESCE_WINDOW = 1000;
+    public static final String RENDER_LOW_PAYLOAD = "render_low_payload";
+    public static final String RENDER_KEYGUARD_SCREEN_OFF = "render_keyguard_screen_off";
+
     // other shared pref entries
     public static final String WEATHER_LAST_UPDATE = "last_weather_update";
     public static final String WEATHER_DATA = "weather_data";
+    public static final String WEATHER_RETRY_FAILURES = "weather_retry_failures";
+    public static final String WEATHER_RETRY_REASON = "weather_retry_reason";
+    public static final String WEATHER_RETRY_NEXT = "weather_retry_next";
 
     // First run is used to hide the initial no-weather message for a better OOBE
     public static final String WEATHER_FIRST_UPDATE = "weather_first_update";
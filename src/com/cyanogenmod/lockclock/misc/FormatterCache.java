@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Process wide cache of the date formatters used when rendering the widget and forecast.
+ *
+ * The formatters are created for the current locale and 12/24 hour setting and reused
+ * until either changes. As they are not thread safe they never leave this class, all the
+ * formatting is done here while holding the cache lock.
+ */
+public class FormatterCache {
+    private static final String TAG = "FormatterCache";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final Object sLock = new Object();
+
+    // All guarded by sLock
+    private static Locale sLocale = null;
+    private static Boolean sIs24Hour = null;
+    private static final HashMap<String, DateFormat> sFormats = new HashMap<String, DateFormat>();
+    // Keyed by the pattern resource id, which resolves to one pattern per locale
+    private static final SparseArray<DateFormat> sResourceFormats = new SparseArray<DateFormat>();
+    private static final SparseArray<String> sPatterns = new SparseArray<String>();
+
+    private FormatterCache() {
+    }
+
+    /**
+     * Drop all the cached formatters, must be called when the locale or the 12/24 hour
+     * setting changes
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            if (D) Log.d(TAG, "Invalidating " + (sFormats.size() + sResourceFormats.size())
+                    + " cached formatters");
+            sFormats.clear();
+            sResourceFormats.clear();
+            sPatterns.clear();
+            sIs24Hour = null;
+            sLocale = null;
+        }
+    }
+
+    /**
+     * Cached equivalent of android.text.format.DateFormat.is24HourFormat()
+     */
+    public static boolean is24HourFormat(Context context) {
+        synchronized (sLock) {
+            checkLocale();
+            if (sIs24Hour == null) {
+                sIs24Hour = android.text.format.DateFormat.is24HourFormat(context);
+            }
+            return sIs24Hour;
+        }
+    }
+
+    /**
+     * Format the date with a SimpleDateFormat pattern
+     */
+    public static String format(String pattern, Date date) {
+        synchronized (sLock) {
+            checkLocale();
+            DateFormat format = sFormats.get(pattern);
+            if (format == null) {
+                format = new SimpleDateFormat(pattern, sLocale);
+                sFormats.put(pattern, format);
+            }
+            return format.format(date);
+        }
+    }
+
+    /**
+     * Format the date with a SimpleDateFormat pattern taken from the resources
+     */
+    public static String format(Context context, int patternResId, Date date) {
+        synchronized (sLock) {
+            checkLocale();
+            DateFormat format = sResourceFormats.get(patternResId);
+            if (format == null) {
+                format = new SimpleDateFormat(context.getString(patternResId), sLocale);
+                sResourceFormats.put(patternResId, format);
+            }
+            return format.format(date);
+        }
+    }
+
+    /**
+     * Format the date with an android.text.format.DateFormat pattern. Its pattern letters
+     * and quoting differ from SimpleDateFormat, so the patterns written for it keep going
+     * through the framework formatter. It holds no state, there is nothing to cache.
+     */
+    public static String formatFramework(CharSequence pattern, Date date) {
+        return android.text.format.DateFormat.format(pattern, date).toString();
+    }
+
+    /**
+     * Format the date with an android.text.format.DateFormat pattern taken from the
+     * resources. Only the pattern lookup is cached.
+     */
+    public static String formatFramework(Context context, int patternResId, Date date) {
+        String pattern;
+        synchronized (sLock) {
+            checkLocale();
+            pattern = sPatterns.get(patternResId);
+            if (pattern == null) {
+                pattern = context.getString(patternResId);
+                sPatterns.put(patternResId, pattern);
+            }
+        }
+        return formatFramework(pattern, date);
+    }
+
+    /**
+     * Format the time of the date according to the user's 12/24 hour setting
+     */
+    public static String formatTime(Context context, Date date) {
+        synchronized (sLock) {
+            String key = is24HourFormat(context) ? "time:24" : "time:12";
+            DateFormat format = sFormats.get(key);
+            if (format == null) {
+                format = android.text.format.DateFormat.getTimeFormat(context);
+                sFormats.put(key, format);
+            }
+            return format.format(date);
+        }
+    }
+
+    private static void checkLocale() {
+        Locale locale = Locale.getDefault();
+        if (!locale.equals(sLocale)) {
+            // The locale changed without us being told, start over
+            sFormats.clear();
+            sResourceFormats.clear();
+            sPatterns.clear();
+            sIs24Hour = null;
+            sLocale = locale;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.cyanogenmod.lockclock.misc;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
@@ -29,27 +30,104 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
 import com.cyanogenmod.lockclock.R;
 
+import java.util.HashMap;
+
 public class IconUtils {
     private static final String TAG = "IconUtils";
     private static boolean D = Constants.DEBUG;
 
+    // Tinted and decoded icons, keyed by owning package, resource id, color and density.
+    // Bounded by the total bitmap size; evicted bitmaps are left to the GC, not recycled,
+    // as they may still be attached to a view.
+    private static final int BITMAP_CACHE_SIZE =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 32, Integer.MAX_VALUE);
+
+    private static final LruCache<BitmapKey, Bitmap> sBitmapCache =
+            new LruCache<BitmapKey, Bitmap>(BITMAP_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(BitmapKey key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    // Reused for every lookup so a cache hit does not allocate, guarded by itself
+    private static final BitmapKey sLookupKey = new BitmapKey();
+
+    private static class BitmapKey {
+        String packageName;
+        int resId;
+        int color;
+        int density;
+
+        BitmapKey set(String packageName, int resId, int color, int density) {
+            this.packageName = packageName;
+            this.resId = resId;
+            this.color = color;
+            this.density = density;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = packageName.hashCode();
+            result = 31 * result + resId;
+            result = 31 * result + color;
+            result = 31 * result + density;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BitmapKey)) {
+                return false;
+            }
+            BitmapKey other = (BitmapKey) obj;
+            return resId == other.resId && color == other.color && density == other.density
+                    && packageName.equals(other.packageName);
+        }
+    }
+
+    // A weather icon resolved to the resources it is loaded from
+    private static class IconResource {
+        final Resources res;
+        final String packageName;
+        final int resId;
+
+        IconResource(Resources res, String packageName, int resId) {
+            this.res = res;
+            this.packageName = packageName;
+            this.resId = resId;
+        }
+    }
+
+    // Resolved weather icons by icon set and condition code, so the identifier lookup is
+    // only done once per icon. Guarded by itself.
+    private static final HashMap<String, SparseArray<IconResource>> sIconResources =
+            new HashMap<String, SparseArray<IconResource>>();
+
     public static int getWeatherIconResource(Context context, String iconSet, int conditionCode) {
         if (iconSet.startsWith("ext:") || iconSet.equals(Constants.MONOCHROME)) {
             return 0;
         }
+        // Unknown conditions resolve to the default color set unknown icon
+        return getIconResource(context, iconSet, conditionCode).resId;
+    }
 
-        final Resources res = context.getResources();
-        final int resId = res.getIdentifier("weather_" + iconSet + "_" + conditionCode,
-                "drawable", context.getPackageName());
-
-        if (resId != 0) {
-            return resId;
+    /**
+     * @return The resource id of the monochrome icon for the condition, for icon sets that
+     *         are tinted with the font color, or 0 if the set is not tinted
+     */
+    public static int getTintedWeatherIconResource(Context context, String iconSet,
+            int conditionCode) {
+        if (!iconSet.equals(Constants.MONOCHROME)) {
+            return 0;
         }
-
-        // Use the default color set unknown icon
-        return R.drawable.weather_color_na;
+        // Unknown conditions resolve to the monochrome set unknown icon
+        return getIconResource(context, iconSet, conditionCode).resId;
     }
 
     public static Bitmap getWeatherIconBitmap(Context context, String iconSet,
@@ -60,11 +138,37 @@ public class IconUtils {
     public static Bitmap getWeatherIconBitmap(Context context, String iconSet,
             int color, int conditionCode, int density) {
         boolean isMonoSet = Constants.MONOCHROME.equals(iconSet);
+        IconResource icon = getIconResource(context, iconSet, conditionCode);
+        return getOverlaidBitmap(icon.res, icon.packageName, icon.resId,
+                isMonoSet ? color : 0, density);
+    }
+
+    private static IconResource getIconResource(Context context, String iconSet,
+            int conditionCode) {
+        synchronized (sIconResources) {
+            SparseArray<IconResource> icons = sIconResources.get(iconSet);
+            if (icons == null) {
+                icons = new SparseArray<IconResource>();
+                sIconResources.put(iconSet, icons);
+            }
+            IconResource icon = icons.get(conditionCode);
+            if (icon == null) {
+                icon = resolveIconResource(context, iconSet, conditionCode);
+                icons.put(conditionCode, icon);
+            }
+            return icon;
+        }
+    }
+
+    private static IconResource resolveIconResource(Context context, String iconSet,
+            int conditionCode) {
+        boolean isMonoSet = Constants.MONOCHROME.equals(iconSet);
         Resources res = null;
+        String packageName = null;
         int resId = 0;
 
         if (iconSet.startsWith("ext:")) {
-            String packageName = iconSet.substring(4);
+            packageName = iconSet.substring(4);
             try {
                 res = context.getPackageManager().getResourcesForApplication(packageName);
                 resId = res.getIdentifier("weather_" + conditionCode, "drawable", packageName);
@@ -77,21 +181,58 @@ public class IconUtils {
             String identifier = isMonoSet
                     ? "weather_" + conditionCode : "weather_" + iconSet + "_" + conditionCode;
             res = context.getResources();
-            resId = res.getIdentifier(identifier, "drawable", context.getPackageName());
+            packageName = context.getPackageName();
+            resId = res.getIdentifier(identifier, "drawable", packageName);
         }
 
         if (resId == 0) {
             resId = isMonoSet ? R.drawable.weather_na : R.drawable.weather_color_na;
         }
 
-        return getOverlaidBitmap(res, resId, isMonoSet ? color : 0, density);
+        if (D) Log.d(TAG, "Resolved icon " + conditionCode + " of set " + iconSet
+                + " to " + packageName + ":" + resId);
+        return new IconResource(res, packageName, resId);
     }
 
-    public static Bitmap getOverlaidBitmap(Resources res, int resId, int color) {
-        return getOverlaidBitmap(res, resId, color, 0);
+    /**
+     * Forget the resolved weather icons, after icon packs were installed or removed or
+     * the configuration changed
+     */
+    public static void invalidateIconResources() {
+        synchronized (sIconResources) {
+            sIconResources.clear();
+        }
     }
 
-    public static Bitmap getOverlaidBitmap(Resources res, int resId, int color, int density) {
+    public static Bitmap getOverlaidBitmap(Resources res, String packageName, int resId,
+            int color) {
+        return getOverlaidBitmap(res, packageName, resId, color, 0);
+    }
+
+    /**
+     * Get the resource as a bitmap with the color overlaid, served from the cache when
+     * possible. The returned bitmap is shared and must not be modified.
+     *
+     * @param packageName The package owning the resources, ids are only unique within it
+     */
+    public static Bitmap getOverlaidBitmap(Resources res, String packageName, int resId,
+            int color, int density) {
+        Bitmap result;
+        synchronized (sLookupKey) {
+            result = sBitmapCache.get(sLookupKey.set(packageName, resId, color, density));
+        }
+        if (result != null) {
+            return result;
+        }
+
+        result = createOverlaidBitmap(res, resId, color, density);
+        if (result != null) {
+            sBitmapCache.put(new BitmapKey().set(packageName, resId, color, density), result);
+        }
+        return result;
+    }
+
+    private static Bitmap createOverlaidBitmap(Resources res, int resId, int color, int density) {
         Bitmap src = getBitmapFromResource(res, resId, density);
         if (color == 0 || src == null) {
             return src;
@@ -131,6 +272,31 @@ public class IconUtils {
         return result;
     }
 
+    /**
+     * Release cached bitmaps in response to Application.onTrimMemory()
+     */
+    public static void trimBitmapCache(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            if (D) Log.d(TAG, "Trim level " + level + ", clearing the bitmap cache");
+            sBitmapCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            if (D) Log.d(TAG, "Trim level " + level + ", halving the bitmap cache");
+            sBitmapCache.trimToSize(sBitmapCache.size() / 2);
+        }
+    }
+
+    public static int getBitmapCacheHitCount() {
+        return sBitmapCache.hitCount();
+    }
+
+    public static int getBitmapCacheMissCount() {
+        return sBitmapCache.missCount();
+    }
+
+    public static int getBitmapCacheEvictionCount() {
+        return sBitmapCache.evictionCount();
+    }
+
     public static int getNextHigherDensity(Context context) {
         Resources res = context.getResources();
         int density = res.getDisplayMetrics().densityDpi;
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 
+import com.cyanogenmod.lockclock.weather.HedgedWeatherProvider;
 import com.cyanogenmod.lockclock.weather.OpenWeatherMapProvider;
 import com.cyanogenmod.lockclock.weather.WeatherInfo;
 import com.cyanogenmod.lockclock.weather.WeatherProvider;
@@ -28,11 +29,68 @@ import com.cyanogenmod.lockclock.weather.YahooWeatherProvider;
 import java.util.Calendar;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Preferences {
+    // The current settings snapshot, null until first requested or after a change
+    private static final AtomicReference<WidgetConfig> sConfig =
+            new AtomicReference<WidgetConfig>();
+
+    // Bumped on every change so that a snapshot built concurrently is not published
+    private static int sConfigGeneration = 0;
+
+    // SharedPreferences only keeps a weak reference to its listeners, so hold on to it here
+    private static SharedPreferences.OnSharedPreferenceChangeListener sConfigListener;
+
     private Preferences() {
     }
 
+    /**
+     * @return The current settings snapshot, built on first use and rebuilt after a change
+     */
+    public static WidgetConfig getConfig(Context context) {
+        WidgetConfig config = sConfig.get();
+        if (config != null) {
+            return config;
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        int generation;
+        synchronized (sConfig) {
+            if (sConfigListener == null) {
+                sConfigListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                        // The cached weather data and the retry state are not part of
+                        // the snapshot
+                        if (!Constants.WEATHER_DATA.equals(key)
+                                && !Constants.WEATHER_LAST_UPDATE.equals(key)
+                                && !Constants.WEATHER_LOCATION_ID.equals(key)
+                                && !Constants.WEATHER_RETRY_FAILURES.equals(key)
+                                && !Constants.WEATHER_RETRY_REASON.equals(key)
+                                && !Constants.WEATHER_RETRY_NEXT.equals(key)) {
+                            synchronized (sConfig) {
+                                sConfigGeneration++;
+                                sConfig.set(null);
+                            }
+                        }
+                    }
+                };
+                prefs.registerOnSharedPreferenceChangeListener(sConfigListener);
+            }
+            generation = sConfigGeneration;
+        }
+
+        config = new WidgetConfig(prefs);
+        synchronized (sConfig) {
+            // Only publish if no change came in while we were building it
+            if (generation == sConfigGeneration) {
+                sConfig.set(config);
+            }
+        }
+        return config;
+    }
+
     public static boolean isFirstWeatherUpdate(Context context) {
         return getPrefs(context).getBoolean(Constants.WEATHER_FIRST_UPDATE, true);
     }
@@ -192,13 +250,39 @@ public class Preferences {
     }
 
     public static WeatherProvider weatherProvider(Context context) {
-        String name = getPrefs(context).getString(Constants.WEATHER_SOURCE, "yahoo");
-        if (name.equals("openweathermap")) {
+        return weatherProvider(context,
+                getPrefs(context).getString(Constants.WEATHER_SOURCE, YahooWeatherProvider.SOURCE));
+    }
+
+    /**
+     * @return The provider of a weather source, as stored in the weather source preference
+     */
+    public static WeatherProvider weatherProvider(Context context, String source) {
+        if (OpenWeatherMapProvider.SOURCE.equals(source)) {
             return new OpenWeatherMapProvider(context);
         }
         return new YahooWeatherProvider(context);
     }
 
+    public static boolean hedgeWeatherProviders(Context context) {
+        return getPrefs(context).getBoolean(Constants.WEATHER_HEDGE_PROVIDERS, false);
+    }
+
+    /**
+     * @return The configured weather provider, backed up by the other one when slow if the
+     *         user opted in to sending the location to both
+     */
+    public static WeatherProvider hedgedWeatherProvider(Context context) {
+        WeatherProvider preferred = weatherProvider(context);
+        if (!hedgeWeatherProviders(context)) {
+            return preferred;
+        }
+        WeatherProvider secondary = preferred instanceof OpenWeatherMapProvider
+                ? new YahooWeatherProvider(context) : new OpenWeatherMapProvider(context);
+        return new HedgedWeatherProvider(preferred, secondary,
+                HedgedWeatherProvider.DEFAULT_HEDGE_DELAY);
+    }
+
     public static void setCachedWeatherInfo(Context context, long timestamp, WeatherInfo data) {
         SharedPreferences.Editor editor = getPrefs(context).edit();
         editor.putLong(Constants.WEATHER_LAST_UPDATE, timestamp);
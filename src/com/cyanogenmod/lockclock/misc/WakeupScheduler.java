@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.Date;
+
+/**
+ * Owns the alarms of the weather, calendar and clock refreshes.
+ *
+ * Every piece of work is planned with a window it may run in. When the window overlaps
+ * the window of work already planned, both are moved to the common part of their windows
+ * so they are delivered together: on API 19 as windowed alarms the alarm manager batches,
+ * before that as alarms due at the same time. Work that does not wake the device is thus
+ * delivered with the wakeup it overlaps with instead of on some later wake up.
+ *
+ * The timeline lives in memory only. The alarms themselves survive the process, only the
+ * coalescing is not redone for work planned by an earlier process.
+ */
+public class WakeupScheduler {
+    private static final String TAG = "WakeupScheduler";
+    private static final boolean D = Constants.DEBUG;
+
+    public static final int WORK_WEATHER = 0;
+    public static final int WORK_CALENDAR = 1;
+    public static final int WORK_CLOCK = 2;
+
+    private static final String[] WORK_NAMES = {
+        "weather", "calendar", "clock"
+    };
+
+    private static class Item {
+        final int work;
+        final PendingIntent operation;
+        final boolean wakeup;
+        final long earliest;
+        final long latest;
+        // The window the alarm was actually set for, within earliest and latest
+        long start;
+        long end;
+
+        Item(int work, PendingIntent operation, boolean wakeup, long earliest, long latest) {
+            this.work = work;
+            this.operation = operation;
+            this.wakeup = wakeup;
+            this.earliest = earliest;
+            this.latest = latest;
+            this.start = earliest;
+            this.end = latest;
+        }
+    }
+
+    // All guarded by WakeupScheduler.class
+    private static final SparseArray<Item> sTimeline = new SparseArray<Item>();
+    private static int sScheduledCount = 0;
+    private static int sCoalescedCount = 0;
+    private static int sWakeupsSavedCount = 0;
+
+    private WakeupScheduler() {
+    }
+
+    /**
+     * Plan the work, replacing the work of the same kind planned before
+     *
+     * @param work One of the WORK_ constants
+     * @param earliest The earliest time (RTC) the work may run
+     * @param latest The latest time the work should run, same as earliest for exact work
+     * @param wakeup true if the work has to wake the device
+     */
+    public static synchronized void schedule(Context context, int work, PendingIntent operation,
+            long earliest, long latest, boolean wakeup) {
+        long now = System.currentTimeMillis();
+        prune(now);
+        sTimeline.remove(work);
+        sScheduledCount++;
+
+        Item item = new Item(work, operation, wakeup, earliest, Math.max(earliest, latest));
+        Item partner = findPartner(item);
+        if (partner != null) {
+            long start = Math.max(item.earliest, partner.start);
+            long end = Math.min(item.latest, partner.end);
+            item.start = start;
+            item.end = end;
+            sCoalescedCount++;
+            if (item.wakeup && partner.wakeup) {
+                sWakeupsSavedCount++;
+            }
+            if (D) Log.d(TAG, "Coalescing " + WORK_NAMES[work] + " with "
+                    + WORK_NAMES[partner.work]);
+            if (partner.start != start || partner.end != end) {
+                partner.start = start;
+                partner.end = end;
+                setAlarm(context, partner);
+            }
+        }
+        sTimeline.put(work, item);
+        setAlarm(context, item);
+    }
+
+    public static synchronized void cancel(Context context, int work, PendingIntent operation) {
+        Item item = sTimeline.get(work);
+        if (item != null && item.operation.equals(operation)) {
+            sTimeline.remove(work);
+        }
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(operation);
+    }
+
+    /**
+     * @return The planned work overlapping with the item where at least one of them wakes
+     *         the device, work waking the device first
+     */
+    private static Item findPartner(Item item) {
+        Item partner = null;
+        for (int i = 0; i < sTimeline.size(); i++) {
+            Item other = sTimeline.valueAt(i);
+            if (other.start > item.latest || other.end < item.earliest) {
+                continue;
+            }
+            if (!other.wakeup && !item.wakeup) {
+                // Both are delivered on the next wake up anyway
+                continue;
+            }
+            if (partner == null || (other.wakeup && !partner.wakeup)) {
+                partner = other;
+            }
+        }
+        return partner;
+    }
+
+    private static void setAlarm(Context context, Item item) {
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        int type = item.wakeup ? AlarmManager.RTC_WAKEUP : AlarmManager.RTC;
+        if (item.end == item.start) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                am.setExact(type, item.start, item.operation);
+            } else {
+                am.set(type, item.start, item.operation);
+            }
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            am.setWindow(type, item.start, item.end - item.start, item.operation);
+        } else {
+            // Coalesced work shares the start, so it is delivered together
+            am.set(type, item.start, item.operation);
+        }
+        if (D) Log.d(TAG, "Scheduled " + WORK_NAMES[item.work] + " at " + new Date(item.start)
+                + (item.end != item.start ? " within " + (item.end - item.start) + "ms" : ""));
+    }
+
+    // Drop the work that is due by now, it has been or is about to be delivered
+    private static void prune(long now) {
+        for (int i = sTimeline.size() - 1; i >= 0; i--) {
+            if (sTimeline.valueAt(i).end < now) {
+                sTimeline.removeAt(i);
+            }
+        }
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        prune(System.currentTimeMillis());
+        pw.println("Wakeup scheduler: " + sScheduledCount + " scheduled, "
+                + sCoalescedCount + " coalesced, " + sWakeupsSavedCount + " wakeups saved");
+        for (int i = 0; i < sTimeline.size(); i++) {
+            Item item = sTimeline.valueAt(i);
+            pw.println("  " + WORK_NAMES[item.work] + (item.wakeup ? " (wakeup)" : "")
+                    + ": " + new Date(item.start) + " - " + new Date(item.end)
+                    + ", allowed until " + new Date(item.latest));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.SharedPreferences;
+import android.graphics.Color;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the widget settings with colors and modes already parsed.
+ *
+ * Obtained through Preferences.getConfig(), which rebuilds it whenever the underlying
+ * shared preferences change. The render paths read from the snapshot instead of going
+ * through SharedPreferences and Color.parseColor for every view they set up.
+ */
+public class WidgetConfig {
+    // Clock
+    public final boolean digitalClock;
+    public final boolean boldHours;
+    public final boolean boldMinutes;
+    public final boolean boldDateAndAlarms;
+    public final boolean showAmPmIndicator;
+    public final boolean showAlarm;
+    public final int clockFontColor;
+    public final int clockAlarmFontColor;
+
+    // Weather
+    public final boolean showWeather;
+    public final boolean showWeatherWhenMinimized;
+    public final boolean showWeatherLocation;
+    public final boolean showWeatherTimestamp;
+    public final boolean invertLowHigh;
+    public final boolean firstWeatherUpdate;
+    public final String weatherSource;
+    public final String weatherIconSet;
+    public final int weatherFontColor;
+    public final int weatherTimestampFontColor;
+
+    // Calendar
+    public final boolean showCalendar;
+    public final boolean showCalendarIcon;
+    public final boolean calendarShowAnniversaries;
+    public final boolean calendarRemindersOnly;
+    public final boolean calendarShowAllDay;
+    public final boolean calendarHighlightUpcoming;
+    public final boolean calendarUpcomingBold;
+    public final int calendarFontColor;
+    public final int calendarDetailsFontColor;
+    public final int calendarUpcomingFontColor;
+    public final int calendarUpcomingDetailsFontColor;
+    public final int calendarLocationMode;
+    public final int calendarDescriptionMode;
+    public final Set<String> calendarList;
+    private final boolean mLookAheadToday;
+    private final long mLookAheadTime;
+
+    // Refresh scheduling and rendering
+    public final long refreshCoalesceWindow;
+    public final boolean lowPayloadRendering;
+    public final boolean renderKeyguardWhenScreenOff;
+
+    WidgetConfig(SharedPreferences prefs) {
+        digitalClock = prefs.getBoolean(Constants.CLOCK_DIGITAL, true);
+        boldHours = prefs.getBoolean(Constants.CLOCK_FONT, false);
+        boldMinutes = prefs.getBoolean(Constants.CLOCK_FONT_MINUTES, false);
+        boldDateAndAlarms = prefs.getBoolean(Constants.CLOCK_FONT_DATE, true);
+        showAmPmIndicator = prefs.getBoolean(Constants.CLOCK_AM_PM_INDICATOR, false);
+        showAlarm = prefs.getBoolean(Constants.CLOCK_SHOW_ALARM, true);
+        clockFontColor = parseColor(prefs, Constants.CLOCK_FONT_COLOR,
+                Constants.DEFAULT_LIGHT_COLOR);
+        clockAlarmFontColor = parseColor(prefs, Constants.CLOCK_ALARM_FONT_COLOR,
+                Constants.DEFAULT_DARK_COLOR);
+
+        showWeather = prefs.getBoolean(Constants.SHOW_WEATHER, true);
+        showWeatherWhenMinimized = prefs.getBoolean(Constants.WEATHER_SHOW_WHEN_MINIMIZED, true);
+        showWeatherLocation = prefs.getBoolean(Constants.WEATHER_SHOW_LOCATION, true);
+        showWeatherTimestamp = prefs.getBoolean(Constants.WEATHER_SHOW_TIMESTAMP, true);
+        invertLowHigh = prefs.getBoolean(Constants.WEATHER_INVERT_LOWHIGH, false);
+        firstWeatherUpdate = prefs.getBoolean(Constants.WEATHER_FIRST_UPDATE, true);
+        weatherSource = prefs.getString(Constants.WEATHER_SOURCE, "yahoo");
+        weatherIconSet = prefs.getString(Constants.WEATHER_ICONS, "color");
+        weatherFontColor = parseColor(prefs, Constants.WEATHER_FONT_COLOR,
+                Constants.DEFAULT_LIGHT_COLOR);
+        weatherTimestampFontColor = parseColor(prefs, Constants.WEATHER_TIMESTAMP_FONT_COLOR,
+                Constants.DEFAULT_DARK_COLOR);
+
+        showCalendar = prefs.getBoolean(Constants.SHOW_CALENDAR, false);
+        showCalendarIcon = prefs.getBoolean(Constants.CALENDAR_ICON, true);
+        calendarShowAnniversaries = prefs.getBoolean(Constants.CALENDAR_SHOW_ANNIVERSARIES, false);
+        calendarRemindersOnly = prefs.getBoolean(Constants.CALENDAR_REMINDERS_ONLY, false);
+        calendarShowAllDay = !prefs.getBoolean(Constants.CALENDAR_HIDE_ALLDAY, false);
+        calendarHighlightUpcoming = prefs.getBoolean(
+                Constants.CALENDAR_HIGHLIGHT_UPCOMING_EVENTS, false);
+        calendarUpcomingBold = prefs.getBoolean(Constants.CALENDAR_UPCOMING_EVENTS_BOLD, false);
+        calendarFontColor = parseColor(prefs, Constants.CALENDAR_FONT_COLOR,
+                Constants.DEFAULT_LIGHT_COLOR);
+        calendarDetailsFontColor = parseColor(prefs, Constants.CALENDAR_DETAILS_FONT_COLOR,
+                Constants.DEFAULT_DARK_COLOR);
+        calendarUpcomingFontColor = parseColor(prefs,
+                Constants.CALENDAR_UPCOMING_EVENTS_FONT_COLOR, Constants.DEFAULT_LIGHT_COLOR);
+        calendarUpcomingDetailsFontColor = parseColor(prefs,
+                Constants.CALENDAR_UPCOMING_EVENTS_DETAILS_FONT_COLOR, Constants.DEFAULT_DARK_COLOR);
+        calendarLocationMode = Integer.parseInt(
+                prefs.getString(Constants.CALENDAR_SHOW_LOCATION, "0"));
+        calendarDescriptionMode = Integer.parseInt(
+                prefs.getString(Constants.CALENDAR_SHOW_DESCRIPTION, "0"));
+
+        // The set returned by SharedPreferences must not be modified or held on to
+        Set<String> calendars = prefs.getStringSet(Constants.CALENDAR_LIST, null);
+        calendarList = calendars == null
+                ? null : Collections.unmodifiableSet(new HashSet<String>(calendars));
+
+        String lookAhead = prefs.getString(Constants.CALENDAR_LOOKAHEAD, "1209600000");
+        mLookAheadToday = lookAhead.equals("today");
+        mLookAheadTime = mLookAheadToday ? 0 : Long.parseLong(lookAhead);
+
+        refreshCoalesceWindow = parseCoalesceWindow(
+                prefs.getString(Constants.REFRESH_COALESCE_WINDOW, null));
+        lowPayloadRendering = prefs.getBoolean(Constants.RENDER_LOW_PAYLOAD, true);
+        renderKeyguardWhenScreenOff = prefs.getBoolean(Constants.RENDER_KEYGUARD_SCREEN_OFF, false);
+    }
+
+    /**
+     * The coordinator holds the goAsync() results of the broadcasts for the whole window,
+     * so it has to stay well below the receiver timeout
+     */
+    private static long parseCoalesceWindow(String value) {
+        long window = -1;
+        if (value != null) {
+            try {
+                window = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // fall through to the default below
+            }
+        }
+        if (window < 0 || window > Constants.MAX_REFRESH_COALESCE_WINDOW) {
+            window = Long.parseLong(Constants.DEFAULT_REFRESH_COALESCE_WINDOW);
+        }
+        return window;
+    }
+
+    /**
+     * The calendar look ahead window, relative to now. The 'today' setting depends on
+     * the current time so it is computed on every call.
+     */
+    public long lookAheadTimeInMs() {
+        if (!mLookAheadToday) {
+            return mLookAheadTime;
+        }
+
+        long now = System.currentTimeMillis();
+
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 23);
+        cal.set(Calendar.MINUTE, 59);
+        cal.set(Calendar.SECOND, 59);
+        cal.set(Calendar.MILLISECOND, 500);
+        long endtimeToday = cal.getTimeInMillis();
+
+        return endtimeToday - now;
+    }
+
+    private static int parseColor(SharedPreferences prefs, String key, String defValue) {
+        return Color.parseColor(prefs.getString(key, defValue));
+    }
+}
@@ -18,6 +18,7 @@
 package com.cyanogenmod.lockclock.misc;
 
 import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -28,6 +29,7 @@ import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 
 import com.cyanogenmod.lockclock.R;
@@ -41,15 +43,99 @@ public class WidgetUtils {
     private static final boolean D = Constants.DEBUG;
 
     /**
-     *  Decide whether to show the small Weather panel
+     *  The sizing decisions for a single widget instance, derived from its options
      */
-    public static boolean showSmallWidget(Context context, int id, boolean digitalClock, boolean isKeyguard) {
+    public static class WidgetLayout {
+        public final boolean digitalClock;
+        public final boolean isKeyguard;
+        public final boolean smallWidget;
+        public final boolean canFitWeather;
+        public final boolean canFitCalendar;
+        public final float scale;
+
+        WidgetLayout(Context context, Bundle options, boolean digitalClock) {
+            Resources res = context.getResources();
+            this.digitalClock = digitalClock;
+            this.isKeyguard = isKeyguard(options);
+            this.smallWidget = showSmallWidget(res, options, digitalClock, isKeyguard);
+            this.canFitWeather = canFitWeather(res, options, digitalClock, isKeyguard);
+            this.canFitCalendar = canFitCalendar(res, options, digitalClock);
+            this.scale = getScaleRatio(res, options);
+        }
+    }
+
+    // Layout descriptors by widget id, only dropped when the inputs change
+    private static final SparseArray<WidgetLayout> sWidgetLayouts = new SparseArray<WidgetLayout>();
+
+    /**
+     *  Get the sizing decisions for a widget, the options are only fetched from the
+     *  AppWidgetManager if nothing is cached for this id and clock type
+     */
+    public static WidgetLayout getWidgetLayout(Context context, int id, boolean digitalClock) {
+        synchronized (sWidgetLayouts) {
+            WidgetLayout layout = sWidgetLayouts.get(id);
+            if (layout != null && layout.digitalClock == digitalClock) {
+                return layout;
+            }
+        }
+
         Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+        return updateWidgetLayout(context, id, options, digitalClock);
+    }
+
+    /**
+     *  Recompute the sizing decisions for a widget from options the host already handed
+     *  over, saving the round trip to the AppWidgetManager on the next refresh
+     */
+    public static WidgetLayout updateWidgetLayout(Context context, int id, Bundle options,
+            boolean digitalClock) {
+        WidgetLayout layout = new WidgetLayout(context, options, digitalClock);
+        if (D) Log.d(TAG, "Computed layout for widget id " + id + ": small = " + layout.smallWidget
+                + ", weather = " + layout.canFitWeather + ", calendar = " + layout.canFitCalendar
+                + ", scale = " + layout.scale);
+        synchronized (sWidgetLayouts) {
+            sWidgetLayouts.put(id, layout);
+        }
+        return layout;
+    }
+
+    /**
+     *  Forget the cached layouts of the given widgets, or all of them if null
+     */
+    public static void invalidateWidgetLayouts(int[] appWidgetIds) {
+        synchronized (sWidgetLayouts) {
+            if (appWidgetIds == null) {
+                sWidgetLayouts.clear();
+                return;
+            }
+            for (int id : appWidgetIds) {
+                sWidgetLayouts.remove(id);
+            }
+        }
+    }
+
+    /**
+     *  Determine if its a home or a lock screen widget
+     */
+    private static boolean isKeyguard(Bundle options) {
+        if (options == null || !isTextClockAvailable()) {
+            // The host category is only available on API 17+
+            return false;
+        }
+        // This generates an API level Lint warning, ignore it
+        int category = options.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1);
+        return category == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
+    }
+
+    /**
+     *  Decide whether to show the small Weather panel
+     */
+    private static boolean showSmallWidget(Resources resources, Bundle options,
+            boolean digitalClock, boolean isKeyguard) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return false;
         }
-        Resources resources = context.getResources();
         int minHeight = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT);
         int minHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, minHeight,
                 resources.getDisplayMetrics());
@@ -78,13 +164,12 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the full Weather panel
      */
-    public static boolean canFitWeather(Context context, int id, boolean digitalClock, boolean isKeyguard) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    private static boolean canFitWeather(Resources resources, Bundle options,
+            boolean digitalClock, boolean isKeyguard) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
         }
-        Resources resources = context.getResources();
         int minHeight = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT);
         int minHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, minHeight,
                 resources.getDisplayMetrics());
@@ -112,13 +197,11 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the Calendar panel
      */
-    public static boolean canFitCalendar(Context context, int id, boolean digitalClock) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    private static boolean canFitCalendar(Resources resources, Bundle options, boolean digitalClock) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
         }
-        Resources resources = context.getResources();
         int minHeight = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT);
         int minHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, minHeight,
                 resources.getDisplayMetrics());
@@ -138,15 +221,13 @@ public class WidgetUtils {
     /**
      *  Calculate the scale factor of the fonts in the widget
      */
-    public static float getScaleRatio(Context context, int id) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    private static float getScaleRatio(Resources res, Bundle options) {
         if (options != null) {
             int minWidth = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH);
             if (minWidth == 0) {
                 // No data , do no scaling
                 return 1f;
             }
-            Resources res = context.getResources();
             float ratio = minWidth / res.getDimension(R.dimen.def_digital_widget_width);
             return (ratio > 1) ? 1f : ratio;
         }
@@ -164,6 +245,15 @@ public class WidgetUtils {
         "com.android.deskclock",
     };
 
+    public static boolean isClockPackage(String packageName) {
+        for (String clockPackage : CLOCK_PACKAGES) {
+            if (clockPackage.equals(packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static Intent getDefaultClockIntent(Context context) {
         PackageManager pm = context.getPackageManager();
         for (String packageName : CLOCK_PACKAGES) {
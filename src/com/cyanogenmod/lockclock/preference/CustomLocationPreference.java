@@ -32,12 +32,18 @@ import android.widget.Toast;
 
 import com.cyanogenmod.lockclock.R;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.weather.HttpRetriever;
+import com.cyanogenmod.lockclock.weather.LocationSearch;
+import com.cyanogenmod.lockclock.weather.WeatherProvider;
 import com.cyanogenmod.lockclock.weather.WeatherProvider.LocationResult;
 
 import java.util.HashSet;
 import java.util.List;
 
 public class CustomLocationPreference extends EditTextPreference {
+    // The search currently running, a new search supersedes it
+    private WeatherLocationTask mSearchTask;
+
     public CustomLocationPreference(Context context) {
         super(context);
     }
@@ -59,11 +65,23 @@ public class CustomLocationPreference extends EditTextPreference {
             @Override
             public void onClick(View v) {
                 CustomLocationPreference.this.onClick(d, DialogInterface.BUTTON_POSITIVE);
-                new WeatherLocationTask(d, getEditText().getText().toString()).execute();
+                startSearch(d, getEditText().getText().toString());
             }
         });
     }
 
+    private void startSearch(Dialog dialog, String location) {
+        if (mSearchTask != null && mSearchTask.getStatus() != AsyncTask.Status.FINISHED) {
+            if (TextUtils.equals(mSearchTask.mLocation, location)) {
+                // Repeated press while the same search is still running
+                return;
+            }
+            mSearchTask.abort();
+        }
+        mSearchTask = new WeatherLocationTask(dialog, location);
+        mSearchTask.execute();
+    }
+
     @Override
     protected void onBindDialogView(View view) {
         super.onBindDialogView(view);
@@ -81,16 +99,30 @@ public class CustomLocationPreference extends EditTextPreference {
         super.onDialogClosed(false);
     }
 
-    private class WeatherLocationTask extends AsyncTask<Void, Void, List<LocationResult>> {
+    /**
+     * Searches the locations. Cached places refining an earlier search are offered while
+     * the query runs, and replaced by its results once they are in.
+     */
+    private class WeatherLocationTask extends AsyncTask<Void, List<LocationResult>,
+            List<LocationResult>> {
         private Dialog mDialog;
         private ProgressDialog mProgressDialog;
+        private AlertDialog mChoiceDialog;
         private String mLocation;
+        private boolean mApplied = false;
+        // Blocking network reads do not react to interrupts, the request is aborted instead
+        private final HttpRetriever.Call mCall = new HttpRetriever.Call();
 
         public WeatherLocationTask(Dialog dialog, String location) {
             mDialog = dialog;
             mLocation = location;
         }
 
+        void abort() {
+            mCall.abort();
+            cancel(true);
+        }
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -103,15 +135,39 @@ public class CustomLocationPreference extends EditTextPreference {
             mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
                 @Override
                 public void onCancel(DialogInterface dialog) {
-                    cancel(true);
+                    abort();
                 }
             });
             mProgressDialog.show();
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         protected List<LocationResult> doInBackground(Void... input) {
-            return Preferences.weatherProvider(getContext()).getLocations(mLocation);
+            final Context context = getContext();
+            WeatherProvider provider = Preferences.weatherProvider(context);
+            List<LocationResult> refined = LocationSearch.refine(context, provider, mLocation);
+            if (refined != null) {
+                publishProgress(refined);
+            }
+
+            HttpRetriever.setThreadCall(mCall);
+            try {
+                return LocationSearch.search(context, provider, mLocation);
+            } finally {
+                HttpRetriever.setThreadCall(null);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(List<LocationResult>... refined) {
+            super.onProgressUpdate(refined);
+            // A single place is not applied before the query confirms it
+            if (refined[0].size() > 1) {
+                // Offer the cached places, the query keeps running behind the choice
+                mProgressDialog.dismiss();
+                handleResultDisambiguation(refined[0], true);
+            }
         }
 
         @Override
@@ -119,6 +175,21 @@ public class CustomLocationPreference extends EditTextPreference {
             super.onPostExecute(results);
 
             final Context context = getContext();
+            mProgressDialog.dismiss();
+
+            if (mApplied) {
+                // A cached place was chosen already
+                return;
+            }
+            if (mChoiceDialog != null) {
+                if (results == null) {
+                    // The query failed, keep offering the cached places
+                    return;
+                }
+                AlertDialog choice = mChoiceDialog;
+                mChoiceDialog = null;
+                choice.dismiss();
+            }
 
             if (results == null || results.isEmpty()) {
                 Toast.makeText(context,
@@ -126,16 +197,30 @@ public class CustomLocationPreference extends EditTextPreference {
                         Toast.LENGTH_SHORT)
                         .show();
             } else if (results.size() > 1) {
-                handleResultDisambiguation(results);
+                handleResultDisambiguation(results, false);
             } else {
                 applyLocation(results.get(0));
             }
+        }
+
+        @Override
+        protected void onCancelled() {
+            super.onCancelled();
             mProgressDialog.dismiss();
+            if (mChoiceDialog != null) {
+                AlertDialog choice = mChoiceDialog;
+                mChoiceDialog = null;
+                choice.dismiss();
+            }
         }
 
-        private void handleResultDisambiguation(final List<LocationResult> results) {
+        /**
+         * @param provisional Whether the places are cached ones offered while the query runs
+         */
+        private void handleResultDisambiguation(final List<LocationResult> results,
+                boolean provisional) {
             CharSequence[] items = buildItemList(results);
-            new AlertDialog.Builder(getContext())
+            final AlertDialog choice = new AlertDialog.Builder(getContext())
                     .setSingleChoiceItems(items, -1, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
@@ -145,7 +230,21 @@ public class CustomLocationPreference extends EditTextPreference {
                     })
                     .setNegativeButton(android.R.string.cancel, null)
                     .setTitle(R.string.weather_select_location)
-                    .show();
+                    .create();
+            if (provisional) {
+                choice.setOnDismissListener(new DialogInterface.OnDismissListener() {
+                    @Override
+                    public void onDismiss(DialogInterface dialog) {
+                        if (mChoiceDialog == choice) {
+                            // Closed by the user, the query still running is not needed
+                            mChoiceDialog = null;
+                            abort();
+                        }
+                    }
+                });
+                mChoiceDialog = choice;
+            }
+            choice.show();
         }
 
         private CharSequence[] buildItemList(List<LocationResult> results) {
@@ -187,6 +286,7 @@ public class CustomLocationPreference extends EditTextPreference {
         }
 
         private void applyLocation(final LocationResult result) {
+            mApplied = true;
             Preferences.setCustomWeatherLocationId(getContext(), result.id);
             setText(result.city);
             mDialog.dismiss();
@@ -25,7 +25,6 @@ import java.util.TimeZone;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.text.format.DateFormat;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -34,8 +33,10 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.cyanogenmod.lockclock.misc.FormatterCache;
 import com.cyanogenmod.lockclock.misc.IconUtils;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WidgetConfig;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.weather.WeatherInfo.DayForecast;
 import com.cyanogenmod.lockclock.R;
@@ -56,8 +57,9 @@ public class ForecastBuilder {
 
         // Load some basic settings
         LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE); 
-        int color = Preferences.weatherFontColor(context);
-        boolean invertLowHigh = Preferences.invertLowHighTemperature(context);
+        final WidgetConfig config = Preferences.getConfig(context);
+        int color = config.weatherFontColor;
+        boolean invertLowHigh = config.invertLowHigh;
 
         View view = inflater.inflate(resourceId, null);
 
@@ -68,7 +70,7 @@ public class ForecastBuilder {
         // Set the current conditions
         // Weather Image
         ImageView weatherImage = (ImageView) view.findViewById(R.id.weather_image);
-        String iconsSet = Preferences.getWeatherIconSet(context);
+        String iconsSet = config.weatherIconSet;
         weatherImage.setImageBitmap(w.getConditionBitmap(iconsSet, color,
                 IconUtils.getNextHigherDensity(context)));
 
@@ -87,12 +89,12 @@ public class ForecastBuilder {
         // Weather Update Time
         Date lastUpdate = w.getTimestamp();
         StringBuilder sb = new StringBuilder();
-        sb.append(DateFormat.format("E", lastUpdate));
+        sb.append(FormatterCache.formatFramework("E", lastUpdate));
         sb.append(" ");
-        sb.append(DateFormat.getTimeFormat(context).format(lastUpdate));
+        sb.append(FormatterCache.formatTime(context, lastUpdate));
         TextView updateTime = (TextView) view.findViewById(R.id.update_time);
         updateTime.setText(sb.toString());
-        updateTime.setVisibility(Preferences.showWeatherTimestamp(context) ? View.VISIBLE : View.GONE);
+        updateTime.setVisibility(config.showWeatherTimestamp ? View.VISIBLE : View.GONE);
 
         // Weather Temps Panel additional items
         final String low = w.getFormattedLow();
@@ -127,8 +129,10 @@ public class ForecastBuilder {
 
       // Get things ready
       LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE); 
-      int color = Preferences.weatherFontColor(context);
-      boolean invertLowHigh = Preferences.invertLowHighTemperature(context);
+      final WidgetConfig config = Preferences.getConfig(context);
+      int color = config.weatherFontColor;
+      boolean invertLowHigh = config.invertLowHigh;
+      String iconsSet = config.weatherIconSet;
 
       ArrayList<DayForecast> forecasts = w.getForecasts();
       if (forecasts == null || forecasts.size() <= 1) {
@@ -151,7 +155,6 @@ public class ForecastBuilder {
 
           // Weather Image
           ImageView image = (ImageView) forecastItem.findViewById(R.id.weather_image);
-          String iconsSet = Preferences.getWeatherIconSet(context);
           int resId = d.getConditionResource(context, iconsSet);
           if (resId != 0) {
               image.setImageResource(resId);
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of reverse geocoding results.
+ *
+ * Locations are bucketed into geohash cells of roughly 1.2 x 0.6 km, so updates from the
+ * same neighbourhood resolve to the same place without asking the provider again. Entries
+ * expire after a day and only the most recently used cells are kept.
+ */
+class GeocodeCache {
+    private static final String TAG = "GeocodeCache";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String PREF_NAME = "GeocodeCache";
+    private static final int PRECISION = 6;
+    private static final int MAX_ENTRIES = 16;
+    private static final long MAX_AGE = 24L * 60 * 60 * 1000;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    static class Entry {
+        final String woeid;
+        final String city;
+        final long timestamp;
+
+        Entry(String woeid, String city, long timestamp) {
+            this.woeid = woeid;
+            this.city = city;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // All guarded by GeocodeCache.class
+    private static LinkedHashMap<String, Entry> sEntries = null;
+    private static int sHitCount = 0;
+    private static int sMissCount = 0;
+
+    private GeocodeCache() {
+    }
+
+    /**
+     * @param language The language the place names were requested in
+     * @return The cached place of the cell the location is in, or null
+     */
+    static synchronized Entry get(Context context, Location location, String language) {
+        load(context);
+        String key = getKey(location, language);
+        Entry entry = sEntries.get(key);
+        if (entry != null) {
+            long age = System.currentTimeMillis() - entry.timestamp;
+            if (age < 0 || age > MAX_AGE) {
+                sEntries.remove(key);
+                getPrefs(context).edit().remove(key).apply();
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            sHitCount++;
+            // Record the access order, so the least recently used cells go first
+            getPrefs(context).edit().putString(key, encode(entry, System.currentTimeMillis()))
+                    .apply();
+        } else {
+            sMissCount++;
+        }
+        if (D) Log.d(TAG, "Lookup of " + key + ": " + (entry != null ? entry.woeid : "miss"));
+        return entry;
+    }
+
+    static synchronized void put(Context context, Location location, String language,
+            String woeid, String city) {
+        load(context);
+        String key = getKey(location, language);
+        Entry entry = new Entry(woeid, city, System.currentTimeMillis());
+        sEntries.put(key, entry);
+
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        editor.putString(key, encode(entry, entry.timestamp));
+        Iterator<String> keys = sEntries.keySet().iterator();
+        while (sEntries.size() > MAX_ENTRIES && keys.hasNext()) {
+            String eldest = keys.next();
+            keys.remove();
+            editor.remove(eldest);
+        }
+        editor.apply();
+    }
+
+    static synchronized void dump(PrintWriter pw) {
+        int lookups = sHitCount + sMissCount;
+        pw.println("Geocode cache entries: " + (sEntries != null ? sEntries.size() : 0)
+                + ", hits: " + sHitCount + " of " + lookups + " lookups"
+                + (lookups > 0 ? " (" + (100 * sHitCount / lookups) + "%)" : "")
+                + ", placefinder requests saved: " + sHitCount);
+    }
+
+    private static void load(Context context) {
+        if (sEntries != null) {
+            return;
+        }
+        sEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true);
+
+        // The access order is restored from the last use timestamps
+        Map<String, ?> all = getPrefs(context).getAll();
+        LinkedHashMap<String, Long> lastUse = new LinkedHashMap<String, Long>();
+        LinkedHashMap<String, Entry> unordered = new LinkedHashMap<String, Entry>();
+        for (Map.Entry<String, ?> item : all.entrySet()) {
+            if (!(item.getValue() instanceof String)) {
+                continue;
+            }
+            String[] parts = ((String) item.getValue()).split("\\|", 4);
+            if (parts.length != 4) {
+                continue;
+            }
+            try {
+                lastUse.put(item.getKey(), Long.parseLong(parts[0]));
+                unordered.put(item.getKey(), new Entry(parts[2],
+                        parts[3].length() > 0 ? parts[3] : null, Long.parseLong(parts[1])));
+            } catch (NumberFormatException e) {
+                lastUse.remove(item.getKey());
+            }
+        }
+        while (!lastUse.isEmpty()) {
+            String oldest = null;
+            for (Map.Entry<String, Long> item : lastUse.entrySet()) {
+                if (oldest == null || item.getValue() < lastUse.get(oldest)) {
+                    oldest = item.getKey();
+                }
+            }
+            lastUse.remove(oldest);
+            sEntries.put(oldest, unordered.get(oldest));
+        }
+        if (D) Log.d(TAG, "Loaded " + sEntries.size() + " cached place(s)");
+    }
+
+    private static String encode(Entry entry, long lastUse) {
+        // The woeid is numeric, so the city name may contain the separator
+        return lastUse + "|" + entry.timestamp + "|" + entry.woeid + "|"
+                + (entry.city != null ? entry.city : "");
+    }
+
+    private static String getKey(Location location, String language) {
+        return language + ":" + geohash(location.getLatitude(), location.getLongitude());
+    }
+
+    private static String geohash(double latitude, double longitude) {
+        double[] lat = { -90.0, 90.0 };
+        double[] lon = { -180.0, 180.0 };
+        StringBuilder hash = new StringBuilder(PRECISION);
+        boolean even = true;
+        int bit = 0;
+        int ch = 0;
+
+        while (hash.length() < PRECISION) {
+            double[] range = even ? lon : lat;
+            double value = even ? longitude : latitude;
+            double mid = (range[0] + range[1]) / 2;
+            ch <<= 1;
+            if (value >= mid) {
+                ch |= 1;
+                range[0] = mid;
+            } else {
+                range[1] = mid;
+            }
+            even = !even;
+            if (++bit == 5) {
+                hash.append(BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+}
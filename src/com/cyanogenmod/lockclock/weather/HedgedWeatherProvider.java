@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weather provider querying a second provider when the first one is slow.
+ *
+ * Only used when the user opted in, as the location is sent to both providers. Location
+ * based updates are sent to the primary provider first. If it has not answered after the
+ * hedge delay, or has failed, the same request goes to the secondary provider and the
+ * first complete answer wins. The requests of the other one are aborted through the
+ * HttpRetriever.Call bound to its thread. Which of the two is the primary is decided by
+ * their recent latencies, the configured provider is preferred until both have enough
+ * samples. The whole update has a deadline.
+ *
+ * Location ids are specific to a provider, so lookups by id and location searches are
+ * only sent to the configured one. The ids of cached answers are routed by the source
+ * stored with them instead.
+ */
+public class HedgedWeatherProvider implements WeatherProvider {
+    private static final String TAG = "HedgedWeatherProvider";
+    private static final boolean D = Constants.DEBUG;
+
+    public static final long DEFAULT_HEDGE_DELAY = 4000;
+    private static final long DEADLINE = 45000;
+    // Samples needed from both providers before the latencies override the configuration
+    private static final int MIN_SAMPLES = 5;
+
+    // Runs the outer provider calls, separate from the HttpRetriever executor which the
+    // providers use themselves
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // All guarded by HedgedWeatherProvider.class
+    private static final HashMap<String, LatencyHistogram> sHistograms =
+            new HashMap<String, LatencyHistogram>();
+    private static int sHedgeCount = 0;
+    private static int sHedgeWinCount = 0;
+    private static int sDeadlineCount = 0;
+
+    private final WeatherProvider mPreferred;
+    private final WeatherProvider mSecondary;
+    private final long mHedgeDelay;
+
+    /**
+     * @param preferred The configured provider
+     * @param secondary The provider the requests are hedged with
+     * @param hedgeDelay How long to wait for the primary before asking the secondary
+     */
+    public HedgedWeatherProvider(WeatherProvider preferred, WeatherProvider secondary,
+            long hedgeDelay) {
+        mPreferred = preferred;
+        mSecondary = secondary;
+        mHedgeDelay = hedgeDelay;
+    }
+
+    @Override
+    public int getNameResourceId() {
+        return mPreferred.getNameResourceId();
+    }
+
+    @Override
+    public List<LocationResult> getLocations(String input) {
+        return mPreferred.getLocations(input);
+    }
+
+    @Override
+    public WeatherInfo getWeatherInfo(String id, String localizedCityName, boolean metric) {
+        return mPreferred.getWeatherInfo(id, localizedCityName, metric);
+    }
+
+    @Override
+    public WeatherInfo getWeatherInfo(final Location location, final boolean metric) {
+        WeatherProvider primary = mPreferred;
+        WeatherProvider secondary = mSecondary;
+        synchronized (HedgedWeatherProvider.class) {
+            LatencyHistogram preferred = getHistogram(mPreferred);
+            LatencyHistogram other = getHistogram(mSecondary);
+            if (preferred.getCount() >= MIN_SAMPLES && other.getCount() >= MIN_SAMPLES
+                    && other.getPercentile(90) < preferred.getPercentile(90)) {
+                primary = mSecondary;
+                secondary = mPreferred;
+            }
+        }
+
+        final Object lock = new Object();
+        final boolean[] decided = new boolean[1];
+        CompletionService<WeatherInfo> completion =
+                new ExecutorCompletionService<WeatherInfo>(sExecutor);
+        long deadline = SystemClock.elapsedRealtime() + DEADLINE;
+
+        HttpRetriever.Call parent = HttpRetriever.getThreadCall();
+        HttpRetriever.Call primaryCall = new HttpRetriever.Call(parent);
+        HttpRetriever.Call secondaryCall = new HttpRetriever.Call(parent);
+        Future<WeatherInfo> primaryFuture = completion.submit(
+                newRequest(primary, primaryCall, location, metric, lock, decided));
+        Future<WeatherInfo> secondaryFuture = null;
+        WeatherInfo result = null;
+        int pending = 1;
+
+        try {
+            Future<WeatherInfo> done = completion.poll(mHedgeDelay, TimeUnit.MILLISECONDS);
+            if (done != null) {
+                pending--;
+                result = getResult(done);
+            }
+            if (result == null) {
+                if (D) Log.d(TAG, "Hedging weather request with " + getName(secondary));
+                synchronized (HedgedWeatherProvider.class) {
+                    sHedgeCount++;
+                }
+                secondaryFuture = completion.submit(
+                        newRequest(secondary, secondaryCall, location, metric, lock, decided));
+                pending++;
+            }
+            while (result == null && pending > 0) {
+                long timeout = deadline - SystemClock.elapsedRealtime();
+                done = timeout > 0 ? completion.poll(timeout, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    Log.w(TAG, "Weather request missed its deadline");
+                    synchronized (HedgedWeatherProvider.class) {
+                        sDeadlineCount++;
+                    }
+                    break;
+                }
+                pending--;
+                result = getResult(done);
+                if (result != null && done == secondaryFuture) {
+                    synchronized (HedgedWeatherProvider.class) {
+                        sHedgeWinCount++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // The update was cancelled
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (lock) {
+                decided[0] = true;
+            }
+            // The loser is not of interest anymore. Aborting closes its connection, the
+            // interrupt stops providers waiting for requests of their own.
+            primaryCall.abort();
+            secondaryCall.abort();
+            primaryFuture.cancel(true);
+            if (secondaryFuture != null) {
+                secondaryFuture.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    private Callable<WeatherInfo> newRequest(final WeatherProvider provider,
+            final HttpRetriever.Call call, final Location location, final boolean metric,
+            final Object lock, final boolean[] decided) {
+        return new Callable<WeatherInfo>() {
+            @Override
+            public WeatherInfo call() {
+                long start = SystemClock.elapsedRealtime();
+                WeatherInfo info;
+                HttpRetriever.setThreadCall(call);
+                try {
+                    info = provider.getWeatherInfo(location, metric);
+                } finally {
+                    HttpRetriever.setThreadCall(null);
+                }
+                long time = SystemClock.elapsedRealtime() - start;
+
+                synchronized (lock) {
+                    // A request failing because it was cancelled says nothing about
+                    // the provider
+                    if (info == null && decided[0]) {
+                        return null;
+                    }
+                }
+                synchronized (HedgedWeatherProvider.class) {
+                    getHistogram(provider).add(info != null ? time : -1);
+                }
+                if (D) Log.d(TAG, getName(provider) + " answered in " + time + "ms"
+                        + (info == null ? " without result" : ""));
+                return info;
+            }
+        };
+    }
+
+    private static WeatherInfo getResult(Future<WeatherInfo> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Weather request failed", e.getCause());
+            return null;
+        }
+    }
+
+    private static String getName(WeatherProvider provider) {
+        return provider.getClass().getSimpleName();
+    }
+
+    // Call with HedgedWeatherProvider.class held
+    private static LatencyHistogram getHistogram(WeatherProvider provider) {
+        String name = getName(provider);
+        LatencyHistogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            sHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        pw.println("Hedged weather requests: " + sHedgeCount + ", won by the hedge: "
+                + sHedgeWinCount + ", missed deadline: " + sDeadlineCount);
+        for (String name : sHistograms.keySet()) {
+            pw.println("  " + name + ": " + sHistograms.get(name));
+        }
+    }
+
+    /**
+     * Latencies of the recent requests to a provider in exponential buckets. Failures are
+     * counted as slower than any answer.
+     */
+    private static class LatencyHistogram {
+        private static final long[] BOUNDS = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000
+        };
+        // Counts are halved when reaching this, so old samples fade out
+        private static final int MAX_COUNT = 64;
+
+        // One bucket per bound, one for slower answers and one for failures
+        private final int[] mBuckets = new int[BOUNDS.length + 2];
+        private int mCount = 0;
+
+        void add(long time) {
+            int bucket;
+            if (time < 0) {
+                bucket = BOUNDS.length + 1;
+            } else {
+                bucket = 0;
+                while (bucket < BOUNDS.length && time > BOUNDS[bucket]) {
+                    bucket++;
+                }
+            }
+            mBuckets[bucket]++;
+            mCount++;
+
+            if (mCount >= MAX_COUNT) {
+                mCount = 0;
+                for (int i = 0; i < mBuckets.length; i++) {
+                    mBuckets[i] /= 2;
+                    mCount += mBuckets[i];
+                }
+            }
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return The upper bound of the bucket the percentile falls in, Long.MAX_VALUE
+         *         for the slow and failed buckets
+         */
+        long getPercentile(int percentile) {
+            int needed = (mCount * percentile + 99) / 100;
+            int seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= needed) {
+                    return BOUNDS[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < BOUNDS.length; i++) {
+                sb.append("<=").append(BOUNDS[i]).append("ms: ").append(mBuckets[i]).append(", ");
+            }
+            sb.append("slower: ").append(mBuckets[BOUNDS.length]);
+            sb.append(", failed: ").append(mBuckets[BOUNDS.length + 1]);
+            return sb.toString();
+        }
+    }
+}
@@ -16,30 +16,491 @@
 
 package com.cyanogenmod.lockclock.weather;
 
+import android.content.Context;
+import android.net.http.HttpResponseCache;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
+import com.cyanogenmod.lockclock.misc.Constants;
 
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Fetches the weather provider responses.
+ *
+ * Uses the platform HttpURLConnection, which keeps idle connections alive in a process
+ * wide pool and transparently negotiates and decodes gzip. The pool is bounded through the
+ * http.maxConnections property. Every request has a connect and a read deadline.
+ *
+ * Responses are kept in a size capped, LRU evicted HTTP cache on disk. Fresh responses
+ * (max-age, Expires) are served without going to the network, stale ones with an ETag or
+ * Last-Modified are revalidated with a conditional GET and served from the cache on 304.
+ * Requests on a call marked with setRevalidate() always go to the server. The cache is
+ * set up by the first request after init() has been called.
+ *
+ * Bodies can be consumed as a stream through a BodyReader, retrieve(String) is a
+ * convenience for callers that want the whole body as a string. Requests that should run
+ * in parallel can be submitted to a small shared executor and aborted through a Call.
+ */
 public class HttpRetriever {
     private static final String TAG = "HttpRetriever";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final int MAX_CONNECTIONS = 4;
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final String CACHE_DIR = "http";
+    private static final long CACHE_SIZE = 1024 * 1024;
+    // Set by the platform HTTP stack, e.g. "CONDITIONAL_CACHE 304"
+    private static final String RESPONSE_SOURCE_HEADER = "X-Android-Response-Source";
+    // Sent to have a cached response revalidated even if it is still fresh
+    private static final String REVALIDATE_CACHE_CONTROL = "max-age=0";
+
+    private static final int MAX_PARALLEL_REQUESTS = 2;
+
+    // Why a request failed, see getFailureCount()
+    public static final int FAILURE_TIMEOUT = 0;
+    public static final int FAILURE_NETWORK = 1;
+    public static final int FAILURE_HTTP = 2;
+    public static final int FAILURE_PARSE = 3;
+    private static final int FAILURE_KINDS = 4;
+
+    // Runs the requests issued in parallel, the threads go away when idle
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_REQUESTS, MAX_PARALLEL_REQUESTS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        // Idle connections kept alive per route, the platform default is 5
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS));
+        }
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Handle to abort a request from another thread. Blocking network reads do not react
+     * to interrupts, aborting closes the connection instead. A call can be used for a
+     * series of requests, once aborted every further request on it is aborted as well.
+     *
+     * The call counts why its requests failed, and passes that on to its parent, so the
+     * outcome of an update is known without looking at the process wide counters other
+     * requests contribute to.
+     */
+    public static class Call {
+        private final Call mParent;
+        private final int[] mFailureCounts = new int[FAILURE_KINDS];
+        private HttpURLConnection mConnection = null;
+        private boolean mAborted = false;
+        private boolean mRevalidate = false;
+
+        public Call() {
+            this(null);
+        }
+
+        /**
+         * @param parent The call the failures are counted for as well, may be null
+         */
+        public Call(Call parent) {
+            mParent = parent;
+        }
+
+        public synchronized void abort() {
+            mAborted = true;
+            if (mConnection != null) {
+                mConnection.disconnect();
+            }
+        }
+
+        public synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        /**
+         * Have the responses to the requests on this call and its children revalidated with
+         * the server, instead of serving them from the cache while they are fresh
+         */
+        public synchronized void setRevalidate(boolean revalidate) {
+            mRevalidate = revalidate;
+        }
+
+        boolean shouldRevalidate() {
+            synchronized (this) {
+                if (mRevalidate) {
+                    return true;
+                }
+            }
+            return mParent != null && mParent.shouldRevalidate();
+        }
+
+        synchronized boolean attach(HttpURLConnection connection) {
+            mConnection = connection;
+            return !mAborted;
+        }
+
+        // A finished request may have returned its connection to the pool, leave it alone
+        synchronized void detach(HttpURLConnection connection) {
+            if (mConnection == connection) {
+                mConnection = null;
+            }
+        }
+
+        void recordFailure(int kind) {
+            synchronized (this) {
+                mFailureCounts[kind]++;
+            }
+            if (mParent != null) {
+                mParent.recordFailure(kind);
+            }
+        }
+
+        /**
+         * @param kind One of the FAILURE_ constants
+         * @return The number of requests on this call and its children that failed so far
+         */
+        public synchronized int getFailureCount(int kind) {
+            return mFailureCounts[kind];
+        }
+    }
+
+    /**
+     * Consumes a response body
+     */
+    public interface BodyReader<T> {
+        /**
+         * @param in The (already decompressed) body, closed by the caller
+         * @param charset The charset announced by the server, or UTF-8
+         * @return The result handed back by retrieve(), null if the body could not be used
+         * @throws XmlPullParserException If the body is not well formed XML, counted as a
+         *         parse failure like a MalformedJsonException or returning null
+         */
+        T read(InputStream in, String charset) throws IOException, XmlPullParserException;
+    }
+
+    private static final BodyReader<String> STRING_READER = new BodyReader<String>() {
+        @Override
+        public String read(InputStream in, String charset) throws IOException {
+            Reader reader = new InputStreamReader(in, charset);
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        }
+    };
+
+    // The call the requests made on a thread without an explicit call are bound to
+    private static final ThreadLocal<Call> sThreadCall = new ThreadLocal<Call>();
+
+    // Guarded by HttpRetriever.class
+    private static Context sContext = null;
+    private static boolean sCacheInstalled = false;
+
+    // Statistics, guarded by HttpRetriever.class
+    private static int sCacheHitCount = 0;
+    private static int sRevalidatedCount = 0;
+    private static int sRequestCount = 0;
+    private static int sFailureCount = 0;
+    private static final int[] sFailureKindCounts = new int[FAILURE_KINDS];
+    private static long sBytesRead = 0;
+    private static long sTotalTime = 0;
+    private static long sMaxTime = 0;
+
+    /**
+     * Provide the context the response cache is created in
+     */
+    public static synchronized void init(Context context) {
+        sContext = context.getApplicationContext();
+    }
+
+    /**
+     * Install the response cache, if not done yet. Done on the first request rather than
+     * in init() to keep the disk access off the main thread.
+     */
+    private static synchronized void ensureCache() {
+        if (sCacheInstalled || sContext == null) {
+            return;
+        }
+        sCacheInstalled = true;
+        if (HttpResponseCache.getInstalled() != null) {
+            return;
+        }
+        try {
+            File dir = new File(sContext.getCacheDir(), CACHE_DIR);
+            HttpResponseCache.install(dir, CACHE_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not install the HTTP response cache", e);
+        }
+    }
+
+    /**
+     * @return The call bound to the current thread, or null
+     */
+    public static Call getThreadCall() {
+        return sThreadCall.get();
+    }
+
+    /**
+     * Bind the requests made on the current thread without a call of their own to the given
+     * call, so code that does not know about calls can still be aborted from another thread
+     *
+     * @param call The call, or null to unbind
+     */
+    public static void setThreadCall(Call call) {
+        if (call != null) {
+            sThreadCall.set(call);
+        } else {
+            sThreadCall.remove();
+        }
+    }
+
+    /**
+     * Run the task on the shared request executor
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return sExecutor.submit(task);
+    }
 
     public static String retrieve(String url) {
-        HttpGet request = new HttpGet(url);
+        return retrieve(url, STRING_READER, null);
+    }
+
+    public static String retrieve(String url, Call call) {
+        return retrieve(url, STRING_READER, call);
+    }
+
+    public static <T> T retrieve(String url, BodyReader<T> reader) {
+        return retrieve(url, reader, null);
+    }
+
+    /**
+     * Fetch the url and hand the body to the reader. Error responses are passed on as
+     * well, the providers report their errors in the body.
+     *
+     * @param call Used to abort the request from another thread, may be null in which case
+     *        the call bound to the thread, if any, is used
+     * @return What the reader returned, or null if the request failed or was aborted
+     */
+    public static <T> T retrieve(String url, BodyReader<T> reader, Call call) {
+        ensureCache();
+        if (call == null) {
+            call = sThreadCall.get();
+        }
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = null;
+        CountingInputStream in = null;
+        boolean success = false;
+        int failure = -1;
         try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity);
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (call != null && call.shouldRevalidate()) {
+                connection.setRequestProperty("Cache-Control", REVALIDATE_CACHE_CONTROL);
+            }
+            if (call != null && !call.attach(connection)) {
+                if (D) Log.d(TAG, "Request to " + url + " aborted before it started");
+                return null;
+            }
+
+            int status = connection.getResponseCode();
+            InputStream body = status >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream() : connection.getInputStream();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                failure = FAILURE_HTTP;
+            }
+            if (body == null) {
+                if (failure < 0) {
+                    failure = FAILURE_NETWORK;
+                }
+                Log.w(TAG, "No body received from url " + url + ", status " + status);
+                return null;
+            }
+
+            recordSource(connection.getHeaderField(RESPONSE_SOURCE_HEADER));
+            in = new CountingInputStream(body);
+            T result = reader.read(in, getCharset(connection.getContentType()));
+            if (result == null && failure < 0) {
+                // The readers return null for bodies they could not make sense of
+                failure = FAILURE_PARSE;
             }
+            success = failure < 0;
+            return result;
+        } catch (MalformedJsonException e) {
+            failure = FAILURE_PARSE;
+            Log.e(TAG, "Malformed JSON received from url " + url, e);
+        } catch (XmlPullParserException e) {
+            failure = FAILURE_PARSE;
+            Log.e(TAG, "Malformed XML received from url " + url, e);
+        } catch (SocketTimeoutException e) {
+            failure = FAILURE_TIMEOUT;
+            Log.e(TAG, "Timed out retrieving data from url " + url, e);
         } catch (IOException e) {
-            Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+            if (call != null && call.isAborted()) {
+                if (D) Log.d(TAG, "Request to " + url + " aborted");
+            } else {
+                failure = FAILURE_NETWORK;
+                Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    // Closing rather than disconnecting returns the connection to the pool
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            } else if (connection != null) {
+                connection.disconnect();
+            }
+            if (call != null) {
+                call.detach(connection);
+                if (failure >= 0) {
+                    call.recordFailure(failure);
+                }
+            }
+            record(url, success, failure, in != null ? in.getCount() : 0,
+                    System.nanoTime() - start);
         }
         return null;
     }
+
+    private static synchronized void record(String url, boolean success, int failure,
+            long bytes, long time) {
+        sRequestCount++;
+        if (!success) {
+            sFailureCount++;
+        }
+        if (failure >= 0) {
+            sFailureKindCounts[failure]++;
+        }
+        sBytesRead += bytes;
+        sTotalTime += time;
+        sMaxTime = Math.max(sMaxTime, time);
+        if (D) Log.d(TAG, "Fetched " + bytes + " bytes in " + time / 1000000 + "ms from " + url);
+    }
+
+    private static synchronized void recordSource(String source) {
+        if (source == null) {
+            return;
+        }
+        if (source.startsWith("CONDITIONAL_CACHE")) {
+            // Revalidated, only served from the cache if the server said 304
+            if (source.endsWith("304")) {
+                sRevalidatedCount++;
+            }
+        } else if (source.startsWith("CACHE")) {
+            sCacheHitCount++;
+        }
+    }
+
+    /**
+     * @param kind One of the FAILURE_ constants
+     * @return How many requests failed for that reason so far, aborted requests are not
+     *         counted
+     */
+    public static synchronized int getFailureCount(int kind) {
+        return sFailureKindCounts[kind];
+    }
+
+    static synchronized int getCacheHitCount() {
+        return sCacheHitCount;
+    }
+
+    static synchronized int getRevalidatedCount() {
+        return sRevalidatedCount;
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        pw.println("HTTP requests: " + sRequestCount + ", failed: " + sFailureCount
+                + ", body bytes: " + sBytesRead);
+        pw.println("HTTP failures: timeout " + sFailureKindCounts[FAILURE_TIMEOUT]
+                + ", network " + sFailureKindCounts[FAILURE_NETWORK]
+                + ", http " + sFailureKindCounts[FAILURE_HTTP]
+                + ", unusable body " + sFailureKindCounts[FAILURE_PARSE]);
+        pw.println("HTTP cache hits: " + sCacheHitCount + ", revalidated (304): "
+                + sRevalidatedCount);
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache != null) {
+            pw.println("HTTP cache size: " + cache.size() + " of " + cache.maxSize()
+                    + " bytes, requests: " + cache.getRequestCount()
+                    + ", network: " + cache.getNetworkCount());
+        }
+        if (sRequestCount > 0) {
+            pw.println(String.format("HTTP request time: avg %.1fms, max %.1fms",
+                    sTotalTime / 1000000.0 / sRequestCount, sMaxTime / 1000000.0));
+        }
+    }
+
+    private static String getCharset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String charset = param.substring(8).replace("\"", "").trim();
+                    if (charset.length() > 0) {
+                        return charset;
+                    }
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
 }
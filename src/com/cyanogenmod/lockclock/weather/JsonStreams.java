@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Helpers for the streaming JSON parsers of the weather providers. The parsers only pick
+ * the fields they need out of the response and skip everything else.
+ */
+class JsonStreams {
+    private JsonStreams() {
+    }
+
+    static JsonReader newReader(InputStream in, String charset) throws IOException {
+        return new JsonReader(new InputStreamReader(in, charset));
+    }
+
+    /**
+     * @return The value as a string, numbers included, or null for a JSON null
+     */
+    static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * Consume a JSON null if that is what comes next
+     *
+     * @return true if a null was consumed
+     */
+    static boolean skipNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Advance within the current object up to the value of the given name, skipping the
+     * values before it
+     *
+     * @return false if the object has no such name, it is then fully read except for
+     *         its end
+     */
+    static boolean findName(JsonReader reader, String name) throws IOException {
+        while (reader.hasNext()) {
+            if (name.equals(reader.nextName())) {
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Read the "content" member of a Yahoo style { "content": ... } object
+     *
+     * @return The content, or null if the value is null or has no content
+     */
+    static String readContent(JsonReader reader) throws IOException {
+        if (skipNull(reader)) {
+            return null;
+        }
+        String content = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("content".equals(reader.nextName())) {
+                content = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return content;
+    }
+}
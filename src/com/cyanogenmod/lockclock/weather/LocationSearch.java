@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.weather.WeatherProvider.LocationResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Location search with a cache of recent queries.
+ *
+ * Results are kept by provider, language and normalized query in memory and in a file in
+ * the cache dir, so repeating a search does not go to the network. When a query refines a
+ * cached one ("berl" -> "berlin"), the cached places matching it by name can be shown while
+ * the query runs. The providers cap the number of places they return, so those are not
+ * necessarily all the matching ones.
+ */
+public class LocationSearch {
+    private static final String TAG = "LocationSearch";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String FILE_NAME = "location_search";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_ENTRIES = 32;
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static class Entry {
+        final long timestamp;
+        final List<LocationResult> results;
+
+        Entry(long timestamp, List<LocationResult> results) {
+            this.timestamp = timestamp;
+            this.results = results;
+        }
+    }
+
+    // Guarded by LocationSearch.class, in access order
+    private static LinkedHashMap<String, Entry> sEntries = null;
+
+    private LocationSearch() {
+    }
+
+    /**
+     * Look up the locations matching the input, from the cache if possible. Blocks while
+     * the provider is queried, so do not call on the main thread.
+     *
+     * @return The matching locations, or null if the query failed
+     */
+    public static List<LocationResult> search(Context context, WeatherProvider provider,
+            String input) {
+        String query = normalize(input);
+        String prefix = getKeyPrefix(provider);
+
+        synchronized (LocationSearch.class) {
+            load(context);
+            Entry entry = sEntries.get(prefix + query);
+            if (entry != null && isFresh(entry, System.currentTimeMillis())) {
+                if (D) Log.d(TAG, "Cached results for " + query);
+                return new ArrayList<LocationResult>(entry.results);
+            }
+        }
+
+        List<LocationResult> results = provider.getLocations(input);
+        if (results != null) {
+            synchronized (LocationSearch.class) {
+                sEntries.put(prefix + query, new Entry(System.currentTimeMillis(),
+                        new ArrayList<LocationResult>(results)));
+                while (sEntries.size() > MAX_ENTRIES) {
+                    sEntries.remove(sEntries.keySet().iterator().next());
+                }
+                save(context);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Look up the places of a broader cached query whose name starts with the input, without
+     * going to the network. The cached lists are capped by the providers, so the result may
+     * miss places and is only good to show until search() returns.
+     *
+     * @return The matching places, or null if there is no such query or none of its places
+     *         match
+     */
+    public static List<LocationResult> refine(Context context, WeatherProvider provider,
+            String input) {
+        String query = normalize(input);
+        String prefix = getKeyPrefix(provider);
+        long now = System.currentTimeMillis();
+
+        synchronized (LocationSearch.class) {
+            load(context);
+            // Iterating an access ordered map does not reorder it
+            for (Map.Entry<String, Entry> item : sEntries.entrySet()) {
+                String key = item.getKey();
+                if (!key.startsWith(prefix) || !isFresh(item.getValue(), now)) {
+                    continue;
+                }
+                String cached = key.substring(prefix.length());
+                if (cached.length() == 0 || cached.length() >= query.length()
+                        || !query.startsWith(cached)) {
+                    continue;
+                }
+                ArrayList<LocationResult> matches = new ArrayList<LocationResult>();
+                for (LocationResult result : item.getValue().results) {
+                    if (result.city != null && result.city.toLowerCase(Locale.getDefault())
+                            .startsWith(query)) {
+                        matches.add(result);
+                    }
+                }
+                if (!matches.isEmpty()) {
+                    if (D) Log.d(TAG, "Refined cached results of " + cached + " for " + query);
+                    return matches;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String normalize(String input) {
+        return input.trim().toLowerCase(Locale.getDefault());
+    }
+
+    private static String getKeyPrefix(WeatherProvider provider) {
+        return provider.getClass().getSimpleName() + ":" + Locale.getDefault() + ":";
+    }
+
+    private static boolean isFresh(Entry entry, long now) {
+        long age = now - entry.timestamp;
+        return age >= 0 && age < MAX_AGE;
+    }
+
+    private static void load(Context context) {
+        if (sEntries != null) {
+            return;
+        }
+        sEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true);
+
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long timestamp = in.readLong();
+                int size = in.readInt();
+                ArrayList<LocationResult> results = new ArrayList<LocationResult>(size);
+                for (int j = 0; j < size; j++) {
+                    LocationResult result = new LocationResult();
+                    result.id = readString(in);
+                    result.city = readString(in);
+                    result.postal = readString(in);
+                    result.countryId = readString(in);
+                    result.country = readString(in);
+                    results.add(result);
+                }
+                sEntries.put(key, new Entry(timestamp, results));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the location search cache", e);
+            sEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void save(Context context) {
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(sEntries.size());
+            for (Map.Entry<String, Entry> item : sEntries.entrySet()) {
+                out.writeUTF(item.getKey());
+                out.writeLong(item.getValue().timestamp);
+                out.writeInt(item.getValue().results.size());
+                for (LocationResult result : item.getValue().results) {
+                    writeString(out, result.id);
+                    writeString(out, result.city);
+                    writeString(out, result.postal);
+                    writeString(out, result.countryId);
+                    writeString(out, result.country);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the location search cache", e);
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
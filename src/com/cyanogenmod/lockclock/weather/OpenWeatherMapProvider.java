@@ -1,14 +1,19 @@
 package com.cyanogenmod.lockclock.weather;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.content.Context;
 import android.location.Location;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.util.JsonReader;
 import android.util.Log;
 
 import com.cyanogenmod.lockclock.weather.WeatherInfo.DayForecast;
@@ -17,7 +22,12 @@ import com.cyanogenmod.lockclock.R;
 public class OpenWeatherMapProvider implements WeatherProvider {
     private static final String TAG = "OpenWeatherMapProvider";
 
+    // The value of the weather source preference selecting this provider
+    public static final String SOURCE = "openweathermap";
+
     private static final int FORECAST_DAYS = 5;
+    // Both requests of an update have to complete within this time
+    private static final long REQUEST_DEADLINE = 30000;
     private static final String SELECTION_LOCATION = "lat=%f&lon=%f";
     private static final String SELECTION_ID = "id=%s";
 
@@ -41,38 +51,66 @@ public class OpenWeatherMapProvider implements WeatherProvider {
     }
 
     @Override
-    public List<LocationResult> getLocations(String input) {
+    public List<LocationResult> getLocations(final String input) {
         String url = String.format(URL_LOCATION, Uri.encode(input), getLanguageCode());
-        String response = HttpRetriever.retrieve(url);
-        if (response == null) {
-            return null;
-        }
+        return HttpRetriever.retrieve(url, new HttpRetriever.BodyReader<List<LocationResult>>() {
+            @Override
+            public List<LocationResult> read(InputStream in, String charset) throws IOException {
+                try {
+                    return parseLocations(JsonStreams.newReader(in, charset));
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Received malformed location data (input=" + input + ")", e);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Received malformed location data (input=" + input + ")", e);
+                }
+                return null;
+            }
+        });
+    }
 
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, "URL = " + url + " returning a response of " + response);
+    private List<LocationResult> parseLocations(JsonReader reader) throws IOException {
+        ArrayList<LocationResult> results = new ArrayList<LocationResult>();
+        reader.beginObject();
+        if (!JsonStreams.findName(reader, "list")) {
+            throw new IllegalStateException("No location list");
         }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            LocationResult location = new LocationResult();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name)) {
+                    location.id = JsonStreams.nextStringOrNull(reader);
+                } else if ("name".equals(name)) {
+                    location.city = JsonStreams.nextStringOrNull(reader);
+                } else if ("sys".equals(name) && !JsonStreams.skipNull(reader)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("country".equals(reader.nextName())) {
+                            location.countryId = JsonStreams.nextStringOrNull(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-        try {
-            JSONArray jsonResults = new JSONObject(response).getJSONArray("list");
-            ArrayList<LocationResult> results = new ArrayList<LocationResult>();
-            int count = jsonResults.length();
-
-            for (int i = 0; i < count; i++) {
-                JSONObject result = jsonResults.getJSONObject(i);
-                LocationResult location = new LocationResult();
-
-                location.id = result.getString("id");
-                location.city = result.getString("name");
-                location.countryId = result.getJSONObject("sys").getString("country");
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Location result: id=" + location.id + ", city=" + location.city
+                        + ", country=" + location.countryId);
+            }
+            // An incomplete entry cannot be selected, it is left out like with Yahoo
+            if (location.id != null && location.city != null && location.countryId != null) {
                 results.add(location);
             }
-
-            return results;
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed location data (input=" + input + ")", e);
         }
-
-        return null;
+        // The rest of the response is of no interest
+        return results;
     }
 
     public WeatherInfo getWeatherInfo(String id, String localizedCityName, boolean metric) {
@@ -86,81 +124,287 @@ public class OpenWeatherMapProvider implements WeatherProvider {
         return handleWeatherRequest(selection, null, metric);
     }
 
-    private WeatherInfo handleWeatherRequest(String selection,
-            String localizedCityName, boolean metric) {
+    private WeatherInfo handleWeatherRequest(final String selection,
+            String localizedCityName, final boolean metric) {
         String units = metric ? "metric" : "imperial";
-        String locale = getLanguageCode();
-        String conditionUrl = String.format(Locale.US, URL_WEATHER, selection, units, locale);
-        String conditionResponse = HttpRetriever.retrieve(conditionUrl);
-        if (conditionResponse == null) {
-            return null;
+        final String locale = getLanguageCode();
+        final String conditionUrl = String.format(Locale.US, URL_WEATHER, selection, units, locale);
+        final String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, units, locale);
+
+        // Fetch the conditions and the forecast in parallel, each one parsed as soon as it
+        // arrives. If either fails there is no point in waiting for the other. The failures
+        // count for the call of the caller's thread, the requests run on other threads.
+        HttpRetriever.Call parent = HttpRetriever.getThreadCall();
+        final HttpRetriever.Call conditionCall = new HttpRetriever.Call(parent);
+        final HttpRetriever.Call forecastCall = new HttpRetriever.Call(parent);
+        Future<Conditions> conditionFuture = HttpRetriever.submit(new Callable<Conditions>() {
+            @Override
+            public Conditions call() {
+                Conditions result = null;
+                try {
+                    result = HttpRetriever.retrieve(conditionUrl, CONDITIONS_READER, conditionCall);
+                    if (result != null && !result.isComplete()) {
+                        // Fails the update, no need to wait for the forecast
+                        Log.w(TAG, "Received incomplete weather data (selection = "
+                                + selection + ", lang = " + locale + ")");
+                        result = null;
+                    }
+                    return result;
+                } finally {
+                    if (result == null) {
+                        forecastCall.abort();
+                    }
+                }
+            }
+        });
+        Future<ArrayList<DayForecast>> forecastFuture = HttpRetriever.submit(
+                new Callable<ArrayList<DayForecast>>() {
+            @Override
+            public ArrayList<DayForecast> call() {
+                ArrayList<DayForecast> result = null;
+                try {
+                    result = HttpRetriever.retrieve(forecastUrl,
+                            new HttpRetriever.BodyReader<ArrayList<DayForecast>>() {
+                        @Override
+                        public ArrayList<DayForecast> read(InputStream in, String charset)
+                                throws IOException {
+                            try {
+                                return parseForecasts(JsonStreams.newReader(in, charset), metric);
+                            } catch (IllegalStateException e) {
+                                Log.w(TAG, "Received malformed forecast data", e);
+                            } catch (NumberFormatException e) {
+                                Log.w(TAG, "Received malformed forecast data", e);
+                            }
+                            return null;
+                        }
+                    }, forecastCall);
+                    return result;
+                } finally {
+                    if (result == null) {
+                        conditionCall.abort();
+                    }
+                }
+            }
+        });
+
+        long deadline = SystemClock.elapsedRealtime() + REQUEST_DEADLINE;
+        Conditions conditions = null;
+        ArrayList<DayForecast> forecasts = null;
+        try {
+            conditions = conditionFuture.get(deadline - SystemClock.elapsedRealtime(),
+                    TimeUnit.MILLISECONDS);
+            if (conditions != null) {
+                forecasts = forecastFuture.get(deadline - SystemClock.elapsedRealtime(),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Weather request failed (selection = " + selection
+                    + ", lang = " + locale + ")", e.getCause());
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Weather request timed out (selection = " + selection + ")");
+        } catch (InterruptedException e) {
+            // The update was cancelled
+            Thread.currentThread().interrupt();
         }
 
-        String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, units, locale);
-        String forecastResponse = HttpRetriever.retrieve(forecastUrl);
-        if (forecastResponse == null) {
+        if (conditions == null || forecasts == null) {
+            conditionCall.abort();
+            forecastCall.abort();
+            conditionFuture.cancel(true);
+            forecastFuture.cancel(true);
             return null;
         }
 
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, "URL = " + conditionUrl + " returning a response of " + conditionResponse);
+        int speedUnitResId = metric ? R.string.weather_kph : R.string.weather_mph;
+        if (localizedCityName == null) {
+            localizedCityName = conditions.city;
         }
 
-        try {
-            JSONObject conditions = new JSONObject(conditionResponse);
-            JSONObject weather = conditions.getJSONArray("weather").getJSONObject(0);
-            JSONObject conditionData = conditions.getJSONObject("main");
-            JSONObject windData = conditions.getJSONObject("wind");
-            ArrayList<DayForecast> forecasts =
-                    parseForecasts(new JSONObject(forecastResponse).getJSONArray("list"), metric);
-            int speedUnitResId = metric ? R.string.weather_kph : R.string.weather_mph;
-            if (localizedCityName == null) {
-                localizedCityName = conditions.getString("name");
-            }
+        WeatherInfo w = new WeatherInfo(mContext, SOURCE, conditions.id, localizedCityName,
+                /* condition */ conditions.weather.main,
+                /* conditionCode */ mapConditionIconToCode(
+                        conditions.weather.icon, conditions.weather.id),
+                /* temperature */ sanitizeTemperature(conditions.temperature, metric),
+                /* tempUnit */ metric ? "C" : "F",
+                /* humidity */ (float) conditions.humidity,
+                /* wind */ (float) conditions.windSpeed,
+                /* windDir */ conditions.windDirection,
+                /* speedUnit */ mContext.getString(speedUnitResId),
+                forecasts,
+                System.currentTimeMillis());
+
+        Log.d(TAG, "Weather updated: " + w);
+        return w;
+    }
+
+    /**
+     * The fields picked out of the current weather response
+     */
+    private static class Conditions {
+        String id;
+        String city;
+        Condition weather;
+        double temperature = Double.NaN;
+        double humidity = Double.NaN;
+        double windSpeed = Double.NaN;
+        int windDirection = -1;
+
+        boolean isComplete() {
+            return id != null && weather != null && weather.isComplete()
+                    && !Double.isNaN(temperature) && !Double.isNaN(humidity)
+                    && !Double.isNaN(windSpeed) && windDirection >= 0;
+        }
+    }
+
+    /**
+     * The first entry of a "weather" array
+     */
+    private static class Condition {
+        String main;
+        String icon;
+        int id = -1;
 
-            WeatherInfo w = new WeatherInfo(mContext, conditions.getString("id"), localizedCityName,
-                    /* condition */ weather.getString("main"),
-                    /* conditionCode */ mapConditionIconToCode(
-                            weather.getString("icon"), weather.getInt("id")),
-                    /* temperature */ sanitizeTemperature(conditionData.getDouble("temp"), metric),
-                    /* tempUnit */ metric ? "C" : "F",
-                    /* humidity */ (float) conditionData.getDouble("humidity"),
-                    /* wind */ (float) windData.getDouble("speed"),
-                    /* windDir */ windData.getInt("deg"),
-                    /* speedUnit */ mContext.getString(speedUnitResId),
-                    forecasts,
-                    System.currentTimeMillis());
-
-            Log.d(TAG, "Weather updated: " + w);
-            return w;
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed weather data (selection = " + selection
-                    + ", lang = " + locale + ")", e);
+        boolean isComplete() {
+            return main != null && icon != null && id >= 0;
         }
 
-        return null;
+        static Condition read(JsonReader reader) throws IOException {
+            Condition condition = new Condition();
+            reader.beginArray();
+            if (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("main".equals(name)) {
+                        condition.main = JsonStreams.nextStringOrNull(reader);
+                    } else if ("icon".equals(name)) {
+                        condition.icon = JsonStreams.nextStringOrNull(reader);
+                    } else if ("id".equals(name)) {
+                        condition.id = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            while (reader.hasNext()) {
+                reader.skipValue();
+            }
+            reader.endArray();
+            return condition;
+        }
     }
 
-    private ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric) throws JSONException {
-        ArrayList<DayForecast> result = new ArrayList<DayForecast>();
-        int count = forecasts.length();
+    private static final HttpRetriever.BodyReader<Conditions> CONDITIONS_READER =
+            new HttpRetriever.BodyReader<Conditions>() {
+        @Override
+        public Conditions read(InputStream in, String charset) throws IOException {
+            try {
+                return parseConditions(JsonStreams.newReader(in, charset));
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Received malformed weather data", e);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Received malformed weather data", e);
+            }
+            return null;
+        }
+    };
+
+    private static Conditions parseConditions(JsonReader reader) throws IOException {
+        Conditions conditions = new Conditions();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name)) {
+                conditions.id = JsonStreams.nextStringOrNull(reader);
+            } else if ("name".equals(name)) {
+                conditions.city = JsonStreams.nextStringOrNull(reader);
+            } else if ("weather".equals(name)) {
+                conditions.weather = Condition.read(reader);
+            } else if ("main".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("temp".equals(field)) {
+                        conditions.temperature = reader.nextDouble();
+                    } else if ("humidity".equals(field)) {
+                        conditions.humidity = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ("wind".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("speed".equals(field)) {
+                        conditions.windSpeed = reader.nextDouble();
+                    } else if ("deg".equals(field)) {
+                        conditions.windDirection = (int) reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return conditions;
+    }
 
-        if (count == 0) {
-            throw new JSONException("Empty forecasts array");
+    private ArrayList<DayForecast> parseForecasts(JsonReader reader, boolean metric)
+            throws IOException {
+        ArrayList<DayForecast> result = new ArrayList<DayForecast>();
+        reader.beginObject();
+        if (!JsonStreams.findName(reader, "list")) {
+            throw new IllegalStateException("No forecasts array");
         }
-        for (int i = 0; i < count; i++) {
-            JSONObject forecast = forecasts.getJSONObject(i);
-            JSONObject temperature = forecast.getJSONObject("temp");
-            JSONObject data = forecast.getJSONArray("weather").getJSONObject(0);
-            DayForecast item = new DayForecast(
-                    /* low */ sanitizeTemperature(temperature.getDouble("min"), metric),
-                    /* high */ sanitizeTemperature(temperature.getDouble("max"), metric),
-                    /* condition */ data.getString("main"),
-                    /* conditionCode */ mapConditionIconToCode(
-                            data.getString("icon"), data.getInt("id")));
-            result.add(item);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            double low = Double.NaN, high = Double.NaN;
+            Condition condition = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("temp".equals(name)) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if ("min".equals(field)) {
+                            low = reader.nextDouble();
+                        } else if ("max".equals(field)) {
+                            high = reader.nextDouble();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if ("weather".equals(name)) {
+                    condition = Condition.read(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (Double.isNaN(low) || Double.isNaN(high)
+                    || condition == null || !condition.isComplete()) {
+                throw new IllegalStateException("Incomplete forecast");
+            }
+            result.add(new DayForecast(
+                    /* low */ sanitizeTemperature(low, metric),
+                    /* high */ sanitizeTemperature(high, metric),
+                    /* condition */ condition.main,
+                    /* conditionCode */ mapConditionIconToCode(condition.icon, condition.id)));
         }
 
+        if (result.isEmpty()) {
+            throw new IllegalStateException("Empty forecasts array");
+        }
+        // The rest of the response is of no interest
         return result;
     }
 
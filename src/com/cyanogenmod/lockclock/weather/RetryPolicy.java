@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Decides when a failed weather update is retried.
+ *
+ * The delay doubles with every consecutive failure, starting from a base delay that
+ * depends on why the update failed, and is capped. Half of the delay is randomized, so
+ * devices behind the same broken network or provider do not retry in lockstep. A
+ * successful update resets the policy. The state is kept in the shared preferences, so
+ * the backoff survives the process being killed between retries.
+ */
+class RetryPolicy {
+    private static final String TAG = "RetryPolicy";
+    private static final boolean D = Constants.DEBUG;
+
+    // Why an update failed
+    static final int REASON_TIMEOUT = 0;
+    static final int REASON_HTTP_ERROR = 1;
+    static final int REASON_PARSE_ERROR = 2;
+    static final int REASON_NO_LOCATION = 3;
+    static final int REASON_NETWORK = 4;
+
+    private static final String[] REASON_NAMES = {
+        "timeout", "http error", "parse error", "no location", "network"
+    };
+
+    private static final long MINUTE = 60L * 1000L;
+    // By reason, a provider that sends garbage is unlikely to be fixed within minutes
+    private static final long[] BASE_DELAYS = {
+        5 * MINUTE, 15 * MINUTE, 30 * MINUTE, 15 * MINUTE, 5 * MINUTE
+    };
+    private static final long MAX_DELAY = 4 * 60 * MINUTE;
+    // Beyond this the delay would not grow anymore anyway
+    private static final int MAX_EXPONENT = 10;
+
+    /**
+     * Source of the current time, replaceable for testing
+     */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final SharedPreferences mPrefs;
+    private final Clock mClock;
+    private final Random mRandom;
+
+    RetryPolicy(SharedPreferences prefs) {
+        this(prefs, SYSTEM_CLOCK, new Random());
+    }
+
+    RetryPolicy(SharedPreferences prefs, Clock clock, Random random) {
+        mPrefs = prefs;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * Record a failed update
+     *
+     * @param reason One of the REASON_ constants
+     * @param maxDelay Upper bound of the delay, e.g. the refresh interval, 0 for none
+     * @return The delay until the next attempt
+     */
+    long onFailure(int reason, long maxDelay) {
+        int failures = mPrefs.getInt(Constants.WEATHER_RETRY_FAILURES, 0) + 1;
+
+        long cap = MAX_DELAY;
+        if (maxDelay > 0) {
+            cap = Math.max(BASE_DELAYS[reason], Math.min(cap, maxDelay));
+        }
+        long delay = Math.min(cap,
+                BASE_DELAYS[reason] << Math.min(failures - 1, MAX_EXPONENT));
+        // Equal jitter: at least half the delay, so the backoff still grows
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+
+        long next = mClock.currentTimeMillis() + delay;
+        mPrefs.edit()
+                .putInt(Constants.WEATHER_RETRY_FAILURES, failures)
+                .putInt(Constants.WEATHER_RETRY_REASON, reason)
+                .putLong(Constants.WEATHER_RETRY_NEXT, next)
+                .apply();
+
+        if (D) Log.d(TAG, "Failure #" + failures + " (" + REASON_NAMES[reason]
+                + "), retrying in " + delay / 1000 + "s");
+        return delay;
+    }
+
+    void onSuccess() {
+        if (mPrefs.getInt(Constants.WEATHER_RETRY_FAILURES, 0) == 0) {
+            return;
+        }
+        mPrefs.edit()
+                .remove(Constants.WEATHER_RETRY_FAILURES)
+                .remove(Constants.WEATHER_RETRY_REASON)
+                .remove(Constants.WEATHER_RETRY_NEXT)
+                .apply();
+    }
+
+    /**
+     * @return The time of the next retry, or 0 if the last update did not fail
+     */
+    long getNextAttempt() {
+        return mPrefs.getLong(Constants.WEATHER_RETRY_NEXT, 0);
+    }
+
+    /**
+     * @return true if an update now would be earlier than the backoff allows
+     */
+    boolean isBackingOff() {
+        long next = getNextAttempt();
+        long now = mClock.currentTimeMillis();
+        // A next attempt too far in the future means the clock was set back
+        return next > now && next - now <= MAX_DELAY;
+    }
+
+    void dump(PrintWriter pw) {
+        int failures = mPrefs.getInt(Constants.WEATHER_RETRY_FAILURES, 0);
+        if (failures == 0) {
+            pw.println("Weather retries: none pending");
+            return;
+        }
+        int reason = mPrefs.getInt(Constants.WEATHER_RETRY_REASON, REASON_NETWORK);
+        pw.println("Weather retries: " + failures + " consecutive failure(s), last reason "
+                + REASON_NAMES[reason] + ", next attempt in "
+                + (getNextAttempt() - mClock.currentTimeMillis()) / 1000 + "s");
+    }
+}
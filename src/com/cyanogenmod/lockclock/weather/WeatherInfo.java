@@ -37,6 +37,7 @@ public class WeatherInfo {
 
     private Context mContext;
 
+    private String source;
     private String id;
     private String city;
     private String condition;
@@ -50,11 +51,12 @@ public class WeatherInfo {
     private long timestamp;
     private ArrayList<DayForecast> forecasts;
 
-    public WeatherInfo(Context context, String id,
+    public WeatherInfo(Context context, String source, String id,
             String city, String condition, int conditionCode, float temp,
             String tempUnit, float humidity, float wind, int windDir,
             String speedUnit, ArrayList<DayForecast> forecasts, long timestamp) {
         this.mContext = context.getApplicationContext();
+        this.source = source;
         this.id = id;
         this.city = city;
         this.condition = condition;
@@ -118,6 +120,14 @@ public class WeatherInfo {
         return IconUtils.getWeatherIconBitmap(mContext, set, color, conditionCode, density);
     }
 
+    /**
+     * @return The weather source the data came from, as in the weather source preference,
+     *         or null if unknown. The location id is only valid for that source.
+     */
+    public String getSource() {
+        return source;
+    }
+
     public String getId() {
         return id;
     }
@@ -130,6 +140,10 @@ public class WeatherInfo {
         return getCondition(mContext, conditionCode, condition);
     }
 
+    public int getConditionCode() {
+        return conditionCode;
+    }
+
     private static String getCondition(Context context, int conditionCode, String condition) {
         final Resources res = context.getResources();
         final int resId = res.getIdentifier("weather_" + conditionCode, "string", context.getPackageName());
@@ -255,6 +269,7 @@ public class WeatherInfo {
         builder.append(speedUnit).append('|');
         builder.append(timestamp).append('|');
         serializeForecasts(builder);
+        builder.append('|').append(source);
         return builder.toString();
     }
 
@@ -275,9 +290,11 @@ public class WeatherInfo {
         }
 
         String[] parts = input.split("\\|");
-        if (parts == null || parts.length != 12) {
+        // Data cached before the source was stored has no source part
+        if (parts == null || (parts.length != 12 && parts.length != 13)) {
             return null;
         }
+        String source = parts.length == 13 ? parts[12] : null;
 
         int conditionCode, windDirection;
         long timestamp;
@@ -342,7 +359,7 @@ public class WeatherInfo {
             return null;
         }
 
-        return new WeatherInfo(context,
+        return new WeatherInfo(context, source,
                 /* id */ parts[0], /* city */ parts[1], /* condition */ parts[2],
                 conditionCode, temperature, /* tempUnit */ parts[5],
                 humidity, wind, windDirection, /* speedUnit */ parts[9],
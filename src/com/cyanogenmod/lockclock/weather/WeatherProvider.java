@@ -29,6 +29,10 @@ public interface WeatherProvider {
         public String country;
     }
 
+    /**
+     * @return The places matching the input, leaving out the entries lacking an id, city
+     *         or country, or null if the search failed
+     */
     List<LocationResult> getLocations(String input);
 
     WeatherInfo getWeatherInfo(String id, String localizedCityName, boolean metricUnits);
@@ -39,10 +39,13 @@ import android.util.Log;
 import com.cyanogenmod.lockclock.ClockWidgetProvider;
 import com.cyanogenmod.lockclock.misc.Constants;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WakeupScheduler;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Date;
 
 public class WeatherUpdateService extends Service {
@@ -59,6 +62,7 @@ public class WeatherUpdateService extends Service {
 
     private static final long LOCATION_REQUEST_TIMEOUT = 5L * 60L * 1000L; // request for at most 5 minutes
     private static final long OUTDATED_LOCATION_THRESHOLD_MILLIS = 10L * 60L * 1000L; // 10 minutes
+    private static final long MAX_UPDATE_TOLERANCE = 15L * 60L * 1000L; // 15 minutes
 
     private WeatherUpdateTask mTask;
 
@@ -97,7 +101,7 @@ public class WeatherUpdateService extends Service {
             return START_NOT_STICKY;
         }
 
-        mTask = new WeatherUpdateTask();
+        mTask = new WeatherUpdateTask(force);
         mTask.execute();
 
         return START_REDELIVER_INTENT;
@@ -114,6 +118,14 @@ public class WeatherUpdateService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        HttpRetriever.dump(writer);
+        GeocodeCache.dump(writer);
+        HedgedWeatherProvider.dump(writer);
+        new RetryPolicy(Preferences.getPrefs(this)).dump(writer);
+    }
+
     @Override
     public void onDestroy() {
         if (mTask != null && mTask.getStatus() != AsyncTask.Status.FINISHED) {
@@ -131,8 +143,12 @@ public class WeatherUpdateService extends Service {
 
         if (force) {
             Preferences.setCachedWeatherInfo(this, 0, null);
+        } else if (new RetryPolicy(Preferences.getPrefs(this)).isBackingOff()) {
+            // Also covers the connectivity changes of e.g. a captive portal
+            if (D) Log.v(TAG, "Backing off after failed updates, skip update");
+            return false;
         }
-        
+
         long now = System.currentTimeMillis();
         long lastUpdate = Preferences.lastWeatherUpdateTimestamp(this);
         long due = lastUpdate + interval;
@@ -150,9 +166,17 @@ public class WeatherUpdateService extends Service {
     private class WeatherUpdateTask extends AsyncTask<Void, Void, WeatherInfo> {
         private WakeLock mWakeLock;
         private Context mContext;
-
-        public WeatherUpdateTask() {
+        private boolean mNoLocation;
+        // Counts the failed requests of this update only
+        private final HttpRetriever.Call mCall = new HttpRetriever.Call();
+
+        /**
+         * @param force Whether the user asked for the update, the responses are then
+         *        revalidated with the server even if the cached ones are still fresh
+         */
+        public WeatherUpdateTask(boolean force) {
             if (D) Log.d(TAG, "Starting weather update task");
+            mCall.setRevalidate(force);
             PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
             mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
             mWakeLock.setReferenceCounted(false);
@@ -204,7 +228,16 @@ public class WeatherUpdateService extends Service {
 
         @Override
         protected WeatherInfo doInBackground(Void... params) {
-            WeatherProvider provider = Preferences.weatherProvider(mContext);
+            HttpRetriever.setThreadCall(mCall);
+            try {
+                return getWeatherInfo();
+            } finally {
+                HttpRetriever.setThreadCall(null);
+            }
+        }
+
+        private WeatherInfo getWeatherInfo() {
+            WeatherProvider provider = Preferences.hedgedWeatherProvider(mContext);
             boolean metric = Preferences.useMetricUnits(mContext);
             String customLocationId = null, customLocationName = null;
 
@@ -218,6 +251,7 @@ public class WeatherUpdateService extends Service {
             }
 
             Location location = getCurrentLocation();
+            mNoLocation = location == null;
             if (location != null) {
                 WeatherInfo info = provider.getWeatherInfo(location, metric);
                 if (info != null) {
@@ -229,12 +263,35 @@ public class WeatherUpdateService extends Service {
             // a listener to update it is already scheduled if possible
             WeatherInfo cachedInfo = Preferences.getCachedWeatherInfo(mContext);
             if (cachedInfo != null) {
+                mNoLocation = false;
+                // The id is only valid for the provider it came from, which is not
+                // necessarily the configured one
+                if (cachedInfo.getSource() != null) {
+                    provider = Preferences.weatherProvider(mContext, cachedInfo.getSource());
+                }
                 return provider.getWeatherInfo(cachedInfo.getId(), cachedInfo.getCity(), metric);
             }
 
             return null;
         }
 
+        /**
+         * @return Why the update failed, from the requests of this update that failed
+         */
+        private int getFailureReason() {
+            if (mCall.getFailureCount(HttpRetriever.FAILURE_TIMEOUT) > 0) {
+                return RetryPolicy.REASON_TIMEOUT;
+            } else if (mCall.getFailureCount(HttpRetriever.FAILURE_HTTP) > 0) {
+                return RetryPolicy.REASON_HTTP_ERROR;
+            } else if (mCall.getFailureCount(HttpRetriever.FAILURE_PARSE) > 0) {
+                return RetryPolicy.REASON_PARSE_ERROR;
+            } else if (mCall.getFailureCount(HttpRetriever.FAILURE_NETWORK) == 0
+                    && mNoLocation) {
+                return RetryPolicy.REASON_NO_LOCATION;
+            }
+            return RetryPolicy.REASON_NETWORK;
+        }
+
         @Override
         protected void onPostExecute(WeatherInfo result) {
             finish(result);
@@ -246,11 +303,14 @@ public class WeatherUpdateService extends Service {
         }
 
         private void finish(WeatherInfo result) {
+            RetryPolicy retryPolicy = new RetryPolicy(Preferences.getPrefs(mContext));
             if (result != null) {
                 if (D) Log.d(TAG, "Weather update received, caching data and updating widget");
                 long now = System.currentTimeMillis();
                 Preferences.setCachedWeatherInfo(mContext, now, result);
-                scheduleUpdate(mContext, Preferences.weatherRefreshIntervalInMs(mContext), false);
+                retryPolicy.onSuccess();
+                scheduleUpdate(mContext, Preferences.weatherRefreshIntervalInMs(mContext),
+                        false, true);
 
                 Intent updateIntent = new Intent(mContext, ClockWidgetProvider.class);
                 sendBroadcast(updateIntent);
@@ -258,10 +318,13 @@ public class WeatherUpdateService extends Service {
                 // cancelled, likely due to lost network - we'll get restarted
                 // when network comes back
             } else {
-                // failure, schedule next download in 30 minutes
-                if (D) Log.d(TAG, "Weather refresh failed, scheduling update in 30 minutes");
-                long interval = 30 * 60 * 1000;
-                scheduleUpdate(mContext, interval, false);
+                // failure, back off. The retry does not wake the device, it runs when
+                // something else does.
+                long delay = retryPolicy.onFailure(getFailureReason(),
+                        Preferences.weatherRefreshIntervalInMs(mContext));
+                if (D) Log.d(TAG, "Weather refresh failed, scheduling update in "
+                        + delay / 1000 + "s");
+                scheduleUpdate(mContext, delay, false, false);
             }
             WeatherContentProvider.updateCachedWeatherInfo(mContext, result);
 
@@ -350,7 +413,7 @@ public class WeatherUpdateService extends Service {
             // Now, we have a location to use. Schedule a weather update right now.
             if (D) Log.d(TAG, "The location has changed, schedule an update ");
             synchronized (WeatherLocationListener.class) {
-                WeatherUpdateService.scheduleUpdate(mContext, 0, true);
+                WeatherUpdateService.scheduleUpdate(mContext, 0, true, true);
                 cancelTimeoutAlarm();
                 sInstance = null;
             }
@@ -362,7 +425,7 @@ public class WeatherUpdateService extends Service {
             if (D) Log.d(TAG, "The location service has become available, schedule an update ");
             if (status == LocationProvider.AVAILABLE) {
                 synchronized (WeatherLocationListener.class) {
-                    WeatherUpdateService.scheduleUpdate(mContext, 0, true);
+                    WeatherUpdateService.scheduleUpdate(mContext, 0, true, true);
                     cancelTimeoutAlarm();
                     sInstance = null;
                 }
@@ -380,21 +443,31 @@ public class WeatherUpdateService extends Service {
         }
     }
 
-    private static void scheduleUpdate(Context context, long timeFromNow, boolean force) {
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    private static void scheduleUpdate(Context context, long timeFromNow, boolean force,
+            boolean wakeup) {
         long due = System.currentTimeMillis() + timeFromNow;
+        // A few minutes late does not matter for the weather, that lets the update share
+        // a wakeup with other work
+        long tolerance = Math.min(Math.max(timeFromNow, 0) / 10, MAX_UPDATE_TOLERANCE);
 
         if (D) Log.d(TAG, "Scheduling next update at " + new Date(due));
-        am.set(AlarmManager.RTC_WAKEUP, due, getUpdateIntent(context, force));
+        WakeupScheduler.schedule(context, WakeupScheduler.WORK_WEATHER,
+                getUpdateIntent(context, force), due, due + tolerance, wakeup);
     }
 
     public static void scheduleNextUpdate(Context context, boolean force) {
         long lastUpdate = Preferences.lastWeatherUpdateTimestamp(context);
         if (lastUpdate == 0 || force) {
-            scheduleUpdate(context, 0, true);
+            scheduleUpdate(context, 0, true, true);
         } else {
             long interval = Preferences.weatherRefreshIntervalInMs(context);
-            scheduleUpdate(context, lastUpdate + interval - System.currentTimeMillis(), false);
+            long due = lastUpdate + interval;
+            RetryPolicy retryPolicy = new RetryPolicy(Preferences.getPrefs(context));
+            if (retryPolicy.isBackingOff()) {
+                // Keep the retry that is already scheduled
+                due = Math.max(due, retryPolicy.getNextAttempt());
+            }
+            scheduleUpdate(context, due - System.currentTimeMillis(), false, true);
         }
     }
 
@@ -407,9 +480,10 @@ public class WeatherUpdateService extends Service {
     }
 
     public static void cancelUpdates(Context context) {
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(getUpdateIntent(context, true));
-        am.cancel(getUpdateIntent(context, false));
+        WakeupScheduler.cancel(context, WakeupScheduler.WORK_WEATHER,
+                getUpdateIntent(context, true));
+        WakeupScheduler.cancel(context, WakeupScheduler.WORK_WEATHER,
+                getUpdateIntent(context, false));
         WeatherLocationListener.cancel(context);
     }
 }
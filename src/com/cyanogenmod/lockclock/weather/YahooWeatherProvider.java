@@ -21,32 +21,29 @@ import android.location.Location;
 import android.net.Uri;
 import android.text.Html;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.Xml;
 
 import com.cyanogenmod.lockclock.weather.WeatherInfo.DayForecast;
 import com.cyanogenmod.lockclock.R;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
 public class YahooWeatherProvider implements WeatherProvider {
     private static final String TAG = "YahooWeatherProvider";
 
+    // The value of the weather source preference selecting this provider
+    public static final String SOURCE = "yahoo";
+
     private static final String URL_WEATHER =
             "http://weather.yahooapis.com/forecastrss?w=%s&u=%s";
     private static final String URL_LOCATION =
@@ -83,81 +80,93 @@ public class YahooWeatherProvider implements WeatherProvider {
         String language = getLanguage();
         String params = "\"" + input + "\" and lang = \"" + language + "\"";
         String url = URL_LOCATION + Uri.encode(params);
-        JSONObject jsonResults = fetchResults(url);
-        if (jsonResults == null) {
-            return null;
-        }
-
-        try {
-            JSONArray places = jsonResults.optJSONArray("place");
-            if (places == null) {
-                // Yahoo returns an object instead of an array when there's only one result
-                places = new JSONArray();
-                places.put(jsonResults.getJSONObject("place"));
-            }
-
-            ArrayList<LocationResult> results = new ArrayList<LocationResult>();
-            for (int i = 0; i < places.length(); i++) {
-                LocationResult result = parsePlace(places.getJSONObject(i));
-                if (result != null) {
-                    results.add(result);
-                }
-            }
-            return results;
-        } catch (JSONException e) {
-            Log.e(TAG, "Received malformed places data (input=" + input + ", lang=" + language + ")", e);
+        List<LocationResult> results = fetchResults(url, "place", PLACES_READER);
+        if (results == null) {
+            Log.e(TAG, "Received no places data (input=" + input + ", lang=" + language + ")");
         }
-        return null;
+        return results;
     }
 
     @Override
     public WeatherInfo getWeatherInfo(String id, String localizedCityName, boolean metric) {
         String url = String.format(URL_WEATHER, id, metric ? "c" : "f");
-        String response = HttpRetriever.retrieve(url);
+        // The XML is parsed as it comes in instead of being buffered first
+        WeatherHandler handler = HttpRetriever.retrieve(url, WEATHER_READER);
 
-        if (response == null) {
+        if (handler == null) {
             return null;
         }
 
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        try {
-            SAXParser parser = factory.newSAXParser();
-            StringReader reader = new StringReader(response);
-            WeatherHandler handler = new WeatherHandler();
-            parser.parse(new InputSource(reader), handler);
-
-            if (handler.isComplete()) {
-                // There are cases where the current condition is unknown, but the forecast
-                // is not - using the (inaccurate) forecast is probably better than showing
-                // the question mark
-                if (handler.conditionCode == 3200) {
-                    handler.condition = handler.forecasts.get(0).condition;
-                    handler.conditionCode = handler.forecasts.get(0).conditionCode;
-                }
-
-                WeatherInfo w = new WeatherInfo(mContext, id,
-                        localizedCityName != null ? localizedCityName : handler.city,
-                        handler.condition, handler.conditionCode, handler.temperature,
-                        handler.temperatureUnit, handler.humidity, handler.windSpeed,
-                        handler.windDirection, handler.speedUnit, handler.forecasts,
-                        System.currentTimeMillis());
-                Log.d(TAG, "Weather updated: " + w);
-                return w;
-            } else {
-                Log.w(TAG, "Received incomplete weather XML (id=" + id + ")");
+        if (handler.isComplete()) {
+            // There are cases where the current condition is unknown, but the forecast
+            // is not - using the (inaccurate) forecast is probably better than showing
+            // the question mark
+            if (handler.conditionCode == 3200) {
+                handler.condition = handler.forecasts.get(0).condition;
+                handler.conditionCode = handler.forecasts.get(0).conditionCode;
             }
-        } catch (ParserConfigurationException e) {
-            Log.e(TAG, "Could not create XML parser", e);
-        } catch (SAXException e) {
-            Log.e(TAG, "Could not parse weather XML (id=" + id + ")", e);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not parse weather XML (id=" + id + ")", e);
+
+            WeatherInfo w = new WeatherInfo(mContext, SOURCE, id,
+                    localizedCityName != null ? localizedCityName : handler.city,
+                    handler.condition, handler.conditionCode, handler.temperature,
+                    handler.temperatureUnit, handler.humidity, handler.windSpeed,
+                    handler.windDirection, handler.speedUnit, handler.forecasts,
+                    System.currentTimeMillis());
+            Log.d(TAG, "Weather updated: " + w);
+            return w;
+        } else {
+            Log.w(TAG, "Received incomplete weather XML (id=" + id + ")");
         }
 
         return null;
     }
 
-    private static class WeatherHandler extends DefaultHandler {
+    private static final String YWEATHER_NS = "http://xml.weather.yahoo.com/ns/rss/1.0";
+
+    // The yweather elements of interest, looked up by local name
+    private static final int ELEMENT_LOCATION = 1;
+    private static final int ELEMENT_UNITS = 2;
+    private static final int ELEMENT_WIND = 3;
+    private static final int ELEMENT_ATMOSPHERE = 4;
+    private static final int ELEMENT_CONDITION = 5;
+    private static final int ELEMENT_FORECAST = 6;
+
+    /**
+     * @return The ELEMENT_ constant of the yweather element, or 0 if it is of no interest
+     */
+    private static int getElement(String name) {
+        if ("condition".equals(name)) {
+            return ELEMENT_CONDITION;
+        } else if ("forecast".equals(name)) {
+            return ELEMENT_FORECAST;
+        } else if ("location".equals(name)) {
+            return ELEMENT_LOCATION;
+        } else if ("units".equals(name)) {
+            return ELEMENT_UNITS;
+        } else if ("wind".equals(name)) {
+            return ELEMENT_WIND;
+        } else if ("atmosphere".equals(name)) {
+            return ELEMENT_ATMOSPHERE;
+        }
+        return 0;
+    }
+
+    // Package-private for the parse benchmark
+    static final HttpRetriever.BodyReader<WeatherHandler> WEATHER_READER =
+            new HttpRetriever.BodyReader<WeatherHandler>() {
+        @Override
+        public WeatherHandler read(InputStream in, String charset)
+                throws IOException, XmlPullParserException {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(in, charset);
+            WeatherHandler handler = new WeatherHandler();
+            handler.parse(parser);
+            return handler;
+        }
+    };
+
+    static class WeatherHandler {
         String city;
         String temperatureUnit, speedUnit;
         int windDirection, conditionCode;
@@ -165,34 +174,56 @@ public class YahooWeatherProvider implements WeatherProvider {
         String condition;
         ArrayList<DayForecast> forecasts = new ArrayList<DayForecast>();
 
-        @Override
-        public void startElement(String uri, String localName, String qName, Attributes attributes)
-                throws SAXException {
-            if (qName.equals("yweather:location")) {
-                city = attributes.getValue("city");
-            } else if (qName.equals("yweather:units")) {
-                temperatureUnit = attributes.getValue("temperature");
-                speedUnit = attributes.getValue("speed");
-            } else if (qName.equals("yweather:wind")) {
-                windDirection = (int) stringToFloat(attributes.getValue("direction"), -1);
-                windSpeed = stringToFloat(attributes.getValue("speed"), -1);
-            } else if (qName.equals("yweather:atmosphere")) {
-                humidity = stringToFloat(attributes.getValue("humidity"), -1);
-            } else if (qName.equals("yweather:condition")) {
-                condition = attributes.getValue("text");
-                conditionCode = (int) stringToFloat(attributes.getValue("code"), -1);
-                temperature = stringToFloat(attributes.getValue("temp"), Float.NaN);
-            } else if (qName.equals("yweather:forecast")) {
-                DayForecast day = new DayForecast(
-                        /* low */ stringToFloat(attributes.getValue("low"), Float.NaN),
-                        /* high */ stringToFloat(attributes.getValue("high"), Float.NaN),
-                        /* condition */ attributes.getValue("text"),
-                        /* conditionCode */ (int) stringToFloat(attributes.getValue("code"), -1));
-                if (!Float.isNaN(day.low) && !Float.isNaN(day.high) && day.conditionCode >= 0) {
-                    forecasts.add(day);
+        void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG
+                        && YWEATHER_NS.equals(parser.getNamespace())) {
+                    int element = getElement(parser.getName());
+                    if (element != 0) {
+                        startElement(element, parser);
+                    }
                 }
+                eventType = parser.next();
+            }
+        }
+
+        private void startElement(int element, XmlPullParser parser) {
+            switch (element) {
+                case ELEMENT_LOCATION:
+                    city = parser.getAttributeValue(null, "city");
+                    break;
+                case ELEMENT_UNITS:
+                    temperatureUnit = parser.getAttributeValue(null, "temperature");
+                    speedUnit = parser.getAttributeValue(null, "speed");
+                    break;
+                case ELEMENT_WIND:
+                    windDirection = (int) stringToFloat(
+                            parser.getAttributeValue(null, "direction"), -1);
+                    windSpeed = stringToFloat(parser.getAttributeValue(null, "speed"), -1);
+                    break;
+                case ELEMENT_ATMOSPHERE:
+                    humidity = stringToFloat(parser.getAttributeValue(null, "humidity"), -1);
+                    break;
+                case ELEMENT_CONDITION:
+                    condition = parser.getAttributeValue(null, "text");
+                    conditionCode = (int) stringToFloat(
+                            parser.getAttributeValue(null, "code"), -1);
+                    temperature = stringToFloat(
+                            parser.getAttributeValue(null, "temp"), Float.NaN);
+                    break;
+                case ELEMENT_FORECAST:
+                    float low = stringToFloat(parser.getAttributeValue(null, "low"), Float.NaN);
+                    float high = stringToFloat(parser.getAttributeValue(null, "high"), Float.NaN);
+                    int code = (int) stringToFloat(parser.getAttributeValue(null, "code"), -1);
+                    if (!Float.isNaN(low) && !Float.isNaN(high) && code >= 0) {
+                        forecasts.add(new DayForecast(low, high,
+                                parser.getAttributeValue(null, "text"), code));
+                    }
+                    break;
             }
         }
+
         public boolean isComplete() {
             return temperatureUnit != null && speedUnit != null && conditionCode >= 0
                     && !Float.isNaN(temperature) && !forecasts.isEmpty();
@@ -212,73 +243,175 @@ public class YahooWeatherProvider implements WeatherProvider {
     @Override
     public WeatherInfo getWeatherInfo(Location location, boolean metric) {
         String language = getLanguage();
+        GeocodeCache.Entry cached = GeocodeCache.get(mContext, location, language);
+        if (cached != null) {
+            Log.d(TAG, "Resolved location " + location + " to " + cached.city
+                    + " (" + cached.woeid + ") from cache");
+            return getWeatherInfo(cached.woeid, cached.city, metric);
+        }
+
         String params = String.format(Locale.US, "\"%f %f\" and locale=\"%s\"",
                 location.getLatitude(), location.getLongitude(), language);
         String url = URL_PLACEFINDER + Uri.encode(params);
-        JSONObject results = fetchResults(url);
-        if (results == null) {
+        Place place = fetchResults(url, "Result", PLACEFINDER_READER);
+        if (place == null || place.woeid == null) {
+            Log.e(TAG, "Received no placefinder data (location="
+                    + location + ", lang=" + language + ")");
             return null;
         }
 
-        try {
-            JSONObject result = results.getJSONObject("Result");
-            String woeid = result.getString("woeid");
-
-            String city = null;
-            for (String name : PLACE_NAMES) {
-                if (!result.isNull(name)) {
-                    city = result.getString(name);
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, String.format(Locale.US, "Placefinder for location %f %f " +
-                                "matched %s using %s", location.getLatitude(),
-                                location.getLongitude(), city, name));
-                    }
-                    break;
+        String city = null;
+        for (int i = 0; i < PLACE_NAMES.length; i++) {
+            city = place.names[i];
+            if (city != null) {
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, String.format(Locale.US, "Placefinder for location %f %f " +
+                            "matched %s using %s", location.getLatitude(),
+                            location.getLongitude(), city, PLACE_NAMES[i]));
                 }
+                break;
             }
+        }
 
-            // The city name in the placefinder result is HTML encoded :-(
-            if (city != null) {
-                city = Html.fromHtml(city).toString();
-            } else {
-                Log.w(TAG, "Can not resolve place name for " + location);
-            }
+        // The city name in the placefinder result is HTML encoded :-(
+        if (city != null) {
+            city = Html.fromHtml(city).toString();
+        } else {
+            Log.w(TAG, "Can not resolve place name for " + location);
+        }
+
+        Log.d(TAG, "Resolved location " + location + " to " + city + " (" + place.woeid + ")");
+        GeocodeCache.put(mContext, location, language, place.woeid, city);
 
-            Log.d(TAG, "Resolved location " + location + " to " + city + " (" + woeid + ")");
+        return getWeatherInfo(place.woeid, city, metric);
+    }
+
+    /**
+     * A placefinder result, names holds the string members of PLACE_NAMES by index
+     */
+    private static class Place {
+        String woeid;
+        String[] names = new String[PLACE_NAMES.length];
+    }
 
-            WeatherInfo info = getWeatherInfo(woeid, city, metric);
-            if (info != null) {
-                return info;
+    /**
+     * @return The index of the name in the array, or -1
+     */
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Received malformed placefinder data (location="
-                    + location + ", lang=" + language + ")", e);
         }
+        return -1;
+    }
 
-        return null;
+    /**
+     * Reads a results value which is either a single object or an array of objects
+     */
+    interface ResultReader<T> {
+        T read(JsonReader reader) throws IOException;
     }
 
-    private LocationResult parsePlace(JSONObject place) throws JSONException {
-        LocationResult result = new LocationResult();
-        JSONObject country = place.getJSONObject("country");
+    static final ResultReader<List<LocationResult>> PLACES_READER =
+            new ResultReader<List<LocationResult>>() {
+        @Override
+        public List<LocationResult> read(JsonReader reader) throws IOException {
+            ArrayList<LocationResult> results = new ArrayList<LocationResult>();
+            // Yahoo returns an object instead of an array when there's only one result
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    addPlace(results, parsePlace(reader));
+                }
+                reader.endArray();
+            } else {
+                addPlace(results, parsePlace(reader));
+            }
+            return results;
+        }
 
-        result.id = place.getString("woeid");
-        result.country = country.getString("content");
-        result.countryId = country.getString("code");
-        if (!place.isNull("postal")) {
-            result.postal = place.getJSONObject("postal").getString("content");
+        private void addPlace(ArrayList<LocationResult> results, LocationResult result) {
+            if (result != null) {
+                results.add(result);
+            }
         }
+    };
 
-        for (String name : LOCALITY_NAMES) {
-            if (!place.isNull(name)) {
-                result.city = place.getJSONObject(name).getString("content");
-                break;
+    private static final ResultReader<Place> PLACEFINDER_READER = new ResultReader<Place>() {
+        @Override
+        public Place read(JsonReader reader) throws IOException {
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                // Only the best match is of interest
+                reader.beginArray();
+                if (!reader.hasNext()) {
+                    return null;
+                }
+            }
+
+            Place place = new Place();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                int index;
+                if ("woeid".equals(name)) {
+                    place.woeid = JsonStreams.nextStringOrNull(reader);
+                } else if ((index = indexOf(PLACE_NAMES, name)) >= 0) {
+                    place.names[index] = JsonStreams.nextStringOrNull(reader);
+                } else {
+                    reader.skipValue();
+                }
             }
+            reader.endObject();
+            return place;
         }
+    };
+
+    private static LocationResult parsePlace(JsonReader reader) throws IOException {
+        LocationResult result = new LocationResult();
+        // Index in LOCALITY_NAMES of the name the city was taken from, lower is preferred
+        int cityIndex = LOCALITY_NAMES.length;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            int index;
+            if ("woeid".equals(name)) {
+                result.id = JsonStreams.nextStringOrNull(reader);
+            } else if ("country".equals(name)) {
+                if (JsonStreams.skipNull(reader)) {
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("content".equals(field)) {
+                        result.country = JsonStreams.nextStringOrNull(reader);
+                    } else if ("code".equals(field)) {
+                        result.countryId = JsonStreams.nextStringOrNull(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ("postal".equals(name)) {
+                result.postal = JsonStreams.readContent(reader);
+            } else if ((index = indexOf(LOCALITY_NAMES, name)) >= 0) {
+                String content = JsonStreams.readContent(reader);
+                if (content != null && index < cityIndex) {
+                    result.city = content;
+                    cityIndex = index;
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, "JSON data " + place.toString() + " -> id=" + result.id
-                    + ", city=" + result.city + ", country=" + result.countryId);
+            Log.v(TAG, "Place -> id=" + result.id + ", city=" + result.city
+                    + ", country=" + result.countryId);
         }
 
         if (result.id == null || result.city == null || result.countryId == null) {
@@ -288,24 +421,48 @@ public class YahooWeatherProvider implements WeatherProvider {
         return result;
     }
 
-    private JSONObject fetchResults(String url) {
-        String response = HttpRetriever.retrieve(url);
-        if (response == null) {
-            return null;
-        }
-
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, "Request URL is " + url + ", response is " + response);
-        }
-
-        try {
-            JSONObject rootObject = new JSONObject(response);
-            return rootObject.getJSONObject("query").getJSONObject("results");
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed places data (url=" + url + ")", e);
-        }
+    /**
+     * Fetch a YQL query and hand the given member of its results to the reader
+     *
+     * @return What the reader returned, or null if the request failed or there are no results
+     */
+    private static <T> T fetchResults(String url, String member, ResultReader<T> resultReader) {
+        return HttpRetriever.retrieve(url, newResultsReader(url, member, resultReader));
+    }
 
-        return null;
+    /**
+     * @return A reader handing the given member of the results of a YQL response to the
+     *         result reader
+     */
+    static <T> HttpRetriever.BodyReader<T> newResultsReader(final String url,
+            final String member, final ResultReader<T> resultReader) {
+        return new HttpRetriever.BodyReader<T>() {
+            @Override
+            public T read(InputStream in, String charset) throws IOException {
+                try {
+                    JsonReader reader = JsonStreams.newReader(in, charset);
+                    reader.beginObject();
+                    if (!JsonStreams.findName(reader, "query")) {
+                        return null;
+                    }
+                    reader.beginObject();
+                    if (!JsonStreams.findName(reader, "results") || JsonStreams.skipNull(reader)) {
+                        return null;
+                    }
+                    reader.beginObject();
+                    if (!JsonStreams.findName(reader, member) || JsonStreams.skipNull(reader)) {
+                        return null;
+                    }
+                    // The rest of the response is of no interest
+                    return resultReader.read(reader);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Received malformed YQL data (url=" + url + ")", e);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Received malformed YQL data (url=" + url + ")", e);
+                }
+                return null;
+            }
+        };
     }
 
     private String getLanguage() {
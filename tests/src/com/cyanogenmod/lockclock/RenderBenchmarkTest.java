@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.Intent;
+import android.os.Bundle;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WidgetUtils;
+
+/**
+ * Time of full refresh passes over fake widgets, for each layout and number of widgets.
+ * The results are logged with the tag below.
+ *
+ * The passes go through the real render path. The ids are not bound to this package, so
+ * the widget host drops the updates once it has received them.
+ */
+@LargeTest
+public class RenderBenchmarkTest extends ServiceTestCase<ClockWidgetService> {
+    private static final String TAG = "RenderBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    private static final int[] WIDGET_COUNTS = new int[] { 1, 4, 16 };
+
+    // Sizes in dp, as a launcher or the keyguard would report them
+    private static final int WIDGET_WIDTH = 294;
+    private static final int SMALL_HEIGHT = 80;
+    private static final int FULL_HEIGHT = 300;
+    private static final int KEYGUARD_HEIGHT = 200;
+
+    public RenderBenchmarkTest() {
+        super(ClockWidgetService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Creates the service without handing it an intent
+        bindService(new Intent(getContext(), ClockWidgetService.class));
+    }
+
+    public void testSmall() {
+        benchmark("small", newOptions(AppWidgetProviderInfo.WIDGET_CATEGORY_HOME_SCREEN,
+                SMALL_HEIGHT));
+    }
+
+    public void testFull() {
+        benchmark("full", newOptions(AppWidgetProviderInfo.WIDGET_CATEGORY_HOME_SCREEN,
+                FULL_HEIGHT));
+    }
+
+    public void testKeyguard() {
+        Bundle options = newOptions(AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD,
+                KEYGUARD_HEIGHT);
+        if (WidgetUtils.isTextClockAvailable()) {
+            assertTrue(WidgetUtils.updateWidgetLayout(getContext(), -1, options, false).isKeyguard);
+        }
+        benchmark("keyguard", options);
+    }
+
+    private void benchmark(String name, Bundle options) {
+        ClockWidgetService service = getService();
+        boolean digitalClock = Preferences.getConfig(getContext()).digitalClock;
+
+        for (int count : WIDGET_COUNTS) {
+            // Negative ids can not clash with real widgets
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = -1 - i;
+                WidgetUtils.updateWidgetLayout(getContext(), ids[i], options, digitalClock);
+            }
+
+            try {
+                for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                    fullPass(service, ids);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    fullPass(service, ids);
+                }
+                long time = System.nanoTime() - start;
+                Log.i(TAG, String.format("%s x%d: %.1fus per pass",
+                        name, count, time / 1000.0 / ITERATIONS));
+            } finally {
+                ClockWidgetService.invalidateWidgets(ids);
+                WidgetUtils.invalidateWidgetLayouts(ids);
+            }
+        }
+    }
+
+    private static void fullPass(ClockWidgetService service, int[] ids) {
+        // Forget the last pushed models, or the pass would find nothing to update
+        ClockWidgetService.invalidateWidgets(ids);
+        service.refreshWidget(ids, WidgetModel.PANEL_ALL);
+    }
+
+    private static Bundle newOptions(int category, int height) {
+        Bundle options = new Bundle();
+        options.putInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, category);
+        options.putInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH, WIDGET_WIDTH);
+        options.putInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH, WIDGET_WIDTH);
+        options.putInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT, height);
+        options.putInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, height);
+        return options;
+    }
+}
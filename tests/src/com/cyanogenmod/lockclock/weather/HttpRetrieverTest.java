@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.cyanogenmod.lockclock.weather.StubHttpServer.Response;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.InputStream;
+
+/**
+ * Tests the response cache and the failure accounting of HttpRetriever against a local
+ * stub server.
+ */
+@MediumTest
+public class HttpRetrieverTest extends InstrumentationTestCase {
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        HttpRetriever.init(getInstrumentation().getTargetContext());
+        mServer = new StubHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    // The cache outlives the test run, so every test uses urls never seen before
+    private String newUrl(String name) {
+        return mServer.getUrl("/" + name + "?run=" + System.nanoTime());
+    }
+
+    public void testFreshResponseServedFromCache() {
+        String url = newUrl("fresh");
+        mServer.enqueue(new Response(200, "fresh").header("Cache-Control", "max-age=600"));
+        int hits = HttpRetriever.getCacheHitCount();
+
+        assertEquals("fresh", HttpRetriever.retrieve(url));
+        assertEquals("fresh", HttpRetriever.retrieve(url));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(hits + 1, HttpRetriever.getCacheHitCount());
+    }
+
+    public void testFreshResponseRevalidatedWhenForced() {
+        String url = newUrl("forced");
+        mServer.enqueue(new Response(200, "forced")
+                .header("Cache-Control", "max-age=600")
+                .header("ETag", "\"v1\""));
+        mServer.enqueue(new Response(304, "").header("ETag", "\"v1\""));
+        int revalidated = HttpRetriever.getRevalidatedCount();
+
+        assertEquals("forced", HttpRetriever.retrieve(url));
+        HttpRetriever.Call parent = new HttpRetriever.Call();
+        parent.setRevalidate(true);
+        assertEquals("forced", HttpRetriever.retrieve(url, new HttpRetriever.Call(parent)));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("\"v1\"", mServer.getRequests().get(1).headers.get("if-none-match"));
+        assertEquals(revalidated + 1, HttpRetriever.getRevalidatedCount());
+    }
+
+    public void testStaleResponseRevalidatedWithETag() {
+        String url = newUrl("etag");
+        mServer.enqueue(new Response(200, "etag")
+                .header("Cache-Control", "max-age=0")
+                .header("ETag", "\"v1\""));
+        mServer.enqueue(new Response(304, "").header("ETag", "\"v1\""));
+        int revalidated = HttpRetriever.getRevalidatedCount();
+
+        assertEquals("etag", HttpRetriever.retrieve(url));
+        assertEquals("etag", HttpRetriever.retrieve(url));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("\"v1\"", mServer.getRequests().get(1).headers.get("if-none-match"));
+        assertEquals(revalidated + 1, HttpRetriever.getRevalidatedCount());
+    }
+
+    public void testStaleResponseRevalidatedWithLastModified() {
+        String url = newUrl("modified");
+        String lastModified = "Mon, 07 Oct 2013 10:00:00 GMT";
+        mServer.enqueue(new Response(200, "modified")
+                .header("Cache-Control", "max-age=0")
+                .header("Last-Modified", lastModified));
+        mServer.enqueue(new Response(304, ""));
+
+        assertEquals("modified", HttpRetriever.retrieve(url));
+        assertEquals("modified", HttpRetriever.retrieve(url));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(lastModified,
+                mServer.getRequests().get(1).headers.get("if-modified-since"));
+    }
+
+    public void testChangedResponseReplacesCachedOne() {
+        String url = newUrl("changed");
+        mServer.enqueue(new Response(200, "old")
+                .header("Cache-Control", "max-age=0")
+                .header("ETag", "\"v1\""));
+        mServer.enqueue(new Response(200, "new")
+                .header("Cache-Control", "max-age=0")
+                .header("ETag", "\"v2\""));
+        mServer.enqueue(new Response(304, ""));
+
+        assertEquals("old", HttpRetriever.retrieve(url));
+        assertEquals("new", HttpRetriever.retrieve(url));
+        assertEquals("new", HttpRetriever.retrieve(url));
+        assertEquals("\"v2\"", mServer.getRequests().get(2).headers.get("if-none-match"));
+    }
+
+    public void testHttpErrorCountedOnCall() {
+        mServer.enqueue(new Response(500, "error"));
+        HttpRetriever.Call call = new HttpRetriever.Call();
+
+        // Error bodies are passed on, the providers report their errors in them
+        assertEquals("error", HttpRetriever.retrieve(newUrl("error"), call));
+        assertEquals(1, call.getFailureCount(HttpRetriever.FAILURE_HTTP));
+        assertEquals(0, call.getFailureCount(HttpRetriever.FAILURE_PARSE));
+    }
+
+    public void testUnusableBodyCountedAsParseFailure() {
+        mServer.enqueue(new Response(200, "garbage"));
+        mServer.enqueue(new Response(200, "<garbage"));
+        HttpRetriever.Call call = new HttpRetriever.Call();
+
+        assertNull(HttpRetriever.retrieve(newUrl("null"), new HttpRetriever.BodyReader<Object>() {
+            @Override
+            public Object read(InputStream in, String charset) {
+                return null;
+            }
+        }, call));
+        assertNull(HttpRetriever.retrieve(newUrl("xml"), new HttpRetriever.BodyReader<Object>() {
+            @Override
+            public Object read(InputStream in, String charset) throws XmlPullParserException {
+                throw new XmlPullParserException("malformed");
+            }
+        }, call));
+        assertEquals(2, call.getFailureCount(HttpRetriever.FAILURE_PARSE));
+    }
+
+    public void testFailuresCountedForParentAndThreadCall() {
+        mServer.enqueue(new Response(503, ""));
+        mServer.enqueue(new Response(503, ""));
+        HttpRetriever.Call parent = new HttpRetriever.Call();
+        HttpRetriever.Call child = new HttpRetriever.Call(parent);
+
+        HttpRetriever.retrieve(newUrl("child"), child);
+        HttpRetriever.setThreadCall(parent);
+        try {
+            HttpRetriever.retrieve(newUrl("thread"));
+        } finally {
+            HttpRetriever.setThreadCall(null);
+        }
+        assertEquals(1, child.getFailureCount(HttpRetriever.FAILURE_HTTP));
+        assertEquals(2, parent.getFailureCount(HttpRetriever.FAILURE_HTTP));
+    }
+
+    public void testAbortedCallSendsNoRequest() {
+        mServer.enqueue(new Response(200, "unused"));
+        HttpRetriever.Call call = new HttpRetriever.Call();
+        call.abort();
+
+        assertNull(HttpRetriever.retrieve(newUrl("aborted"), call));
+        assertEquals(0, mServer.getRequestCount());
+        assertEquals(0, call.getFailureCount(HttpRetriever.FAILURE_NETWORK));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.weather.WeatherProvider.LocationResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Parse throughput of the Yahoo weather RSS and YQL place search responses, over
+ * recorded responses in the test assets. The results are logged with the tag below.
+ */
+@LargeTest
+public class ParseBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "ParseBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int ITERATIONS = 500;
+
+    private static final String CHARSET = "UTF-8";
+
+    public void testWeatherRss() throws Exception {
+        byte[] data = readAsset("yahoo_forecast.xml");
+
+        YahooWeatherProvider.WeatherHandler handler = YahooWeatherProvider.WEATHER_READER.read(
+                new ByteArrayInputStream(data), CHARSET);
+        assertTrue(handler.isComplete());
+        assertEquals("Berlin", handler.city);
+        assertEquals("C", handler.temperatureUnit);
+        assertEquals(11, handler.conditionCode);
+        assertEquals(11f, handler.temperature, 0f);
+        assertEquals(82f, handler.humidity, 0f);
+        assertEquals(230, handler.windDirection);
+        assertEquals(5, handler.forecasts.size());
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            YahooWeatherProvider.WEATHER_READER.read(new ByteArrayInputStream(data), CHARSET);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            YahooWeatherProvider.WEATHER_READER.read(new ByteArrayInputStream(data), CHARSET);
+        }
+        report("Weather RSS", data.length, System.nanoTime() - start);
+    }
+
+    public void testPlaceSearch() throws Exception {
+        byte[] data = readAsset("yql_places.json");
+        HttpRetriever.BodyReader<List<LocationResult>> reader =
+                YahooWeatherProvider.newResultsReader("yql_places.json", "place",
+                        YahooWeatherProvider.PLACES_READER);
+
+        List<LocationResult> results = reader.read(new ByteArrayInputStream(data), CHARSET);
+        assertNotNull(results);
+        assertEquals(4, results.size());
+        assertEquals("638242", results.get(0).id);
+        assertEquals("Berlin", results.get(0).city);
+        assertEquals("DE", results.get(0).countryId);
+        assertEquals("03570", results.get(1).postal);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            reader.read(new ByteArrayInputStream(data), CHARSET);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            reader.read(new ByteArrayInputStream(data), CHARSET);
+        }
+        report("YQL place search", data.length, System.nanoTime() - start);
+    }
+
+    private static void report(String name, int size, long time) {
+        double perParse = time / 1000.0 / ITERATIONS;
+        double throughput = (double) size * ITERATIONS / 1024 / (time / 1000000000.0);
+        Log.i(TAG, String.format("%s: %d bytes, %.1fus per parse, %.0f KB/s",
+                name, size, perParse, throughput));
+    }
+
+    private byte[] readAsset(String name) throws IOException {
+        InputStream in = getInstrumentation().getContext().getAssets().open(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
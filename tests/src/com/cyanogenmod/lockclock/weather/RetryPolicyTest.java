@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Random;
+
+/**
+ * Tests the retry delays against a fake clock, with the jitter pinned where the exact
+ * delay matters.
+ */
+@SmallTest
+public class RetryPolicyTest extends AndroidTestCase {
+    private static final String PREF_NAME = "RetryPolicyTest";
+
+    private static final long MINUTE = 60L * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long MAX_DELAY = 4 * HOUR;
+    // Start of the fake clock, far enough from 0 to set it back
+    private static final long NOW = 1000L * 24 * HOUR;
+
+    private static class FakeClock implements RetryPolicy.Clock {
+        long now = NOW;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    // Always returns the same jitter
+    private static class FixedRandom extends Random {
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    private SharedPreferences mPrefs;
+    private FakeClock mClock;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        mClock = new FakeClock();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    // With no jitter the delay is half of the backoff
+    private RetryPolicy newPolicy() {
+        return new RetryPolicy(mPrefs, mClock, new FixedRandom(0));
+    }
+
+    public void testBaseDelayPerReason() {
+        assertBaseDelay(RetryPolicy.REASON_TIMEOUT, 5 * MINUTE);
+        assertBaseDelay(RetryPolicy.REASON_HTTP_ERROR, 15 * MINUTE);
+        assertBaseDelay(RetryPolicy.REASON_PARSE_ERROR, 30 * MINUTE);
+        assertBaseDelay(RetryPolicy.REASON_NO_LOCATION, 15 * MINUTE);
+        assertBaseDelay(RetryPolicy.REASON_NETWORK, 5 * MINUTE);
+    }
+
+    private void assertBaseDelay(int reason, long base) {
+        RetryPolicy policy = newPolicy();
+        policy.onSuccess();
+        assertEquals("reason " + reason, base / 2, policy.onFailure(reason, 0));
+        policy.onSuccess();
+    }
+
+    public void testDelayDoubles() {
+        RetryPolicy policy = newPolicy();
+        long backoff = 5 * MINUTE;
+        for (int i = 0; i < 6; i++) {
+            assertEquals("failure #" + (i + 1), backoff / 2,
+                    policy.onFailure(RetryPolicy.REASON_TIMEOUT, 0));
+            backoff *= 2;
+        }
+    }
+
+    public void testDelayCappedAtMaximum() {
+        RetryPolicy policy = newPolicy();
+        long delay = 0;
+        for (int i = 0; i < 20; i++) {
+            delay = policy.onFailure(RetryPolicy.REASON_PARSE_ERROR, 0);
+            assertTrue(delay <= MAX_DELAY);
+        }
+        assertEquals(MAX_DELAY / 2, delay);
+
+        RetryPolicy jittered = new RetryPolicy(mPrefs, mClock, new FixedRandom(0.999999));
+        delay = jittered.onFailure(RetryPolicy.REASON_PARSE_ERROR, 0);
+        assertTrue(delay >= MAX_DELAY / 2);
+        assertTrue(delay < MAX_DELAY);
+    }
+
+    public void testDelayCappedAtRefreshInterval() {
+        RetryPolicy policy = newPolicy();
+        long delay = 0;
+        for (int i = 0; i < 10; i++) {
+            delay = policy.onFailure(RetryPolicy.REASON_TIMEOUT, HOUR);
+        }
+        assertEquals(HOUR / 2, delay);
+    }
+
+    public void testRefreshIntervalBelowBaseDelay() {
+        // The base delay of the reason wins over a shorter refresh interval
+        RetryPolicy policy = newPolicy();
+        assertEquals(15 * MINUTE, policy.onFailure(RetryPolicy.REASON_PARSE_ERROR, MINUTE));
+        assertEquals(15 * MINUTE, policy.onFailure(RetryPolicy.REASON_PARSE_ERROR, MINUTE));
+    }
+
+    public void testJitterBounds() {
+        RetryPolicy policy = new RetryPolicy(mPrefs, mClock, new Random(42));
+        long base = 15 * MINUTE;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 200; i++) {
+            long delay = policy.onFailure(RetryPolicy.REASON_HTTP_ERROR, 0);
+            assertTrue("delay " + delay, delay >= base / 2);
+            assertTrue("delay " + delay, delay < base);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+            policy.onSuccess();
+        }
+        // The delays are actually spread, not pinned to one end
+        assertTrue(max - min > base / 4);
+    }
+
+    public void testSuccessResets() {
+        RetryPolicy policy = newPolicy();
+        for (int i = 0; i < 4; i++) {
+            policy.onFailure(RetryPolicy.REASON_NETWORK, 0);
+        }
+        assertTrue(policy.getNextAttempt() > 0);
+
+        policy.onSuccess();
+        assertEquals(0, policy.getNextAttempt());
+        assertFalse(policy.isBackingOff());
+        assertEquals(5 * MINUTE / 2, policy.onFailure(RetryPolicy.REASON_NETWORK, 0));
+    }
+
+    public void testStateSurvivesNewInstance() {
+        newPolicy().onFailure(RetryPolicy.REASON_TIMEOUT, 0);
+        newPolicy().onFailure(RetryPolicy.REASON_TIMEOUT, 0);
+        assertEquals(20 * MINUTE / 2, newPolicy().onFailure(RetryPolicy.REASON_TIMEOUT, 0));
+    }
+
+    public void testIsBackingOff() {
+        RetryPolicy policy = newPolicy();
+        assertFalse(policy.isBackingOff());
+
+        long delay = policy.onFailure(RetryPolicy.REASON_TIMEOUT, 0);
+        assertEquals(NOW + delay, policy.getNextAttempt());
+        assertTrue(policy.isBackingOff());
+
+        mClock.now = NOW + delay - 1;
+        assertTrue(policy.isBackingOff());
+        mClock.now = NOW + delay;
+        assertFalse(policy.isBackingOff());
+    }
+
+    public void testClockSetBack() {
+        RetryPolicy policy = newPolicy();
+        policy.onFailure(RetryPolicy.REASON_TIMEOUT, 0);
+        assertTrue(policy.isBackingOff());
+
+        // The next attempt is now further away than any delay, so it is not trusted
+        mClock.now = NOW - 24 * HOUR;
+        assertFalse(policy.isBackingOff());
+    }
+}
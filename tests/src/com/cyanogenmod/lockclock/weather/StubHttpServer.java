@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal HTTP/1.1 server on localhost answering with queued responses.
+ *
+ * Connections are kept alive like a real server would, so the pooled connections of
+ * HttpURLConnection are exercised as well. The requests are recorded for inspection.
+ */
+class StubHttpServer {
+    static class Response {
+        final int status;
+        final String body;
+        final ArrayList<String> headers = new ArrayList<String>();
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        Response header(String name, String value) {
+            headers.add(name + ": " + value);
+            return this;
+        }
+    }
+
+    static class Request {
+        final String path;
+        // Header names are lower case
+        final HashMap<String, String> headers = new HashMap<String, String>();
+
+        Request(String path) {
+            this.path = path;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    // All guarded by this
+    private final LinkedList<Response> mResponses = new LinkedList<Response>();
+    private final ArrayList<Request> mRequests = new ArrayList<Request>();
+    private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+
+    StubHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("StubHttpServer") {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    synchronized void enqueue(Response response) {
+        mResponses.add(response);
+    }
+
+    synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(mRequests);
+    }
+
+    synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (this) {
+            for (Socket socket : mSockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Shut down
+                return;
+            }
+            synchronized (this) {
+                mSockets.add(socket);
+            }
+            Thread connection = new Thread("StubHttpServer connection") {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                        // The client went away
+                    }
+                }
+            };
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            Request request = new Request(parts.length > 1 ? parts[1] : "");
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+
+            Response response;
+            synchronized (this) {
+                mRequests.add(request);
+                response = mResponses.poll();
+            }
+            if (response == null) {
+                response = new Response(404, "");
+            }
+            write(out, response);
+        }
+    }
+
+    private static void write(OutputStream out, Response response) throws IOException {
+        byte[] body = response.body.getBytes("UTF-8");
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(" Stub\r\n");
+        for (String header : response.headers) {
+            head.append(header).append("\r\n");
+        }
+        // A 304 has no body, not even an empty one
+        if (response.status != 304) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+        if (response.status != 304) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+}